@@ -1,6 +1,3 @@
-import java.awt.Font;
-import java.awt.Color;
-
 /**
  * The class that describe the avatar (player)
  *  
@@ -10,12 +7,16 @@ import java.awt.Color;
  */
 public class Avatar {
    public enum Facing {UP, DOWN, LEFT, RIGHT}
+
+   // Every image draw can use, so they can be loaded ahead of time
+   public static final String[] SPRITES = {"img-avatar-up.png", "img-avatar-down.png", "img-avatar-left.png", "img-avatar-right.png"};
    private int x; 	           	             // current x-location
    private int y; 	                	       // current y-location
    private double torch = 4.0;	             // how powerful our torch is
    private int hp;		            	       // hit points
    private int damage;            	          // damage caused by weapon
-   private Stats timer;                       // for timing display of hit points
+   private final GameClock clock;             // for timing display of hit points
+   private long damagedNanos = -1;            // game time of the last damage taken, -1 if never
    private Facing direction = Facing.DOWN;    // direction facing
 	 
    private static final double TORCH_DELTA = 0.5;
@@ -29,6 +30,20 @@ public class Avatar {
 	 * @param torch  - how powerful our torch is
 	 */
    public Avatar(int x, int y, int hp, int damage, double torch) {
+      this(x, y, hp, damage, torch, new GameClock.RealTime());
+   }
+
+	/**
+	 * Constructor for the Avatar class, timing its health display on a game clock
+	 * @param x		 - current x-location
+	 * @param y		 - current y-location
+	 * @param hp	 - hit points
+	 * @param damage - damage we caused by weapon
+	 * @param torch  - how powerful our torch is
+	 * @param clock  - the world's game clock
+	 */
+   public Avatar(int x, int y, int hp, int damage, double torch, GameClock clock) {
+      this.clock = clock;
       this.x = x;
       this.y = y;
       this.hp = hp;
@@ -54,6 +69,14 @@ public class Avatar {
    public void setDirection(Facing direction) {
       this.direction = direction;
    }
+   /**
+	 * Get the direction the avatar is facing
+    * @return the direction (as enumerated type)
+	 */
+   public Facing getDirection() {
+      return direction;
+   }
+
 	public int whatDirect()
    {
     if(direction == Facing.UP)
@@ -108,6 +131,22 @@ public class Avatar {
       return torch;
    }
 	
+	/**
+	 * Set the torch radius, when restoring a saved game
+	 * @param torch - the torch radius
+	 */
+   public void setTorchRadius(double torch) {
+      this.torch = torch;
+   }
+
+	/**
+	 * Set the hit points, when restoring a saved game
+	 * @param hp - the hit points
+	 */
+   public void setHitPoints(int hp) {
+      this.hp = hp;
+   }
+
 	/**
 	 * Make our torch more powerful
 	 */
@@ -148,23 +187,27 @@ public class Avatar {
 	 * Draw the avatar
 	 */
    public void draw() {
-      double drawX = (x + 0.5 - World.offSetX) * Tile.SIZE;
-      double drawY = (y + 0.5 - World.offSetY) * Tile.SIZE;
+      draw(new Camera(), x, y, hp);
+   }
+
+	/**
+	 * Draw the avatar as it was at some earlier point
+	 * @param camera - the part of the world in view
+	 * @param x      - the x position to draw at
+	 * @param y      - the y position to draw at
+	 * @param hp     - the hit points to show
+	 */
+   public void draw(Camera camera, int x, int y, int hp) {
+      double drawX = camera.screenX(x);
+      double drawY = camera.screenY(y);
       
       String spriteImage = getCorrectAvatarImage();
       StdDraw.picture(drawX, drawY, spriteImage, Tile.SIZE, Tile.SIZE);
                         
       //Show health for a small amount of time after taking damage
-      if ((timer != null) && (timer.elapsedTime() < World.DISPLAY_DAMAGE_SEC)) {
-         String healthString = "" + hp;
-         //Draw background box
-         StdDraw.setPenColor(new Color(0, 0, 0, 150)); //black with alpha
-         StdDraw.filledRectangle(drawX, drawY - Tile.SIZE/2 + 8, (int)(healthString.length()*4.5)+4, 8);                
-         //With font size 14, each digit is 4 pixels wide and 8 pixels tall                       
-         //Draw remaining health text
-         StdDraw.setPenColor(StdDraw.YELLOW);
-         StdDraw.setFont(new Font("SansSerif", Font.BOLD, 14));
-         StdDraw.text(drawX, drawY - Tile.SIZE/2 + 8, healthString);
+      if ((damagedNanos >= 0) && (clock.now() - damagedNanos < World.DISPLAY_DAMAGE_SEC * 1e9)) {
+         //Draw remaining health over a background box
+         StdDraw.number(drawX, drawY - Tile.SIZE/2 + 8, hp, StdDraw.YELLOW);
       }                          
    }
 
@@ -174,8 +217,7 @@ public class Avatar {
 	 */
    public void incurDamage(int points) {
       hp -= points;
-      if (timer == null) timer = new Stats();
-      timer.reset();
+      damagedNanos = clock.now();
    }
 	
 	/**
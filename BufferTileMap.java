@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A TileMap held in one ByteBuffer, on the heap, off it, or mapped from a
+ * file. Tiles are numbered (x * height + y), the same as in a WorldSnapshot.
+ * The buffer holds the lit bits as longs first, so they stay 8 byte aligned,
+ * then a byte per tile for the type and a byte per tile for the metadata,
+ * 2.125 bytes a tile in all. A buffer is indexed by int, so a map can have
+ * at most about a billion tiles.
+ */
+public class BufferTileMap extends TileMap {
+   private final ByteBuffer buffer;             // the whole map
+   private final LongBuffer lit;                // the lit bits, a view of the start of the buffer
+   private final int typeAt;                    // where the types start in the buffer
+   private final int metaAt;                    // where the metadata starts in the buffer
+
+   private BufferTileMap(int width, int height, ByteBuffer buffer) {
+      super(width, height);
+      int words = (int) (((long) width * height + 63) >>> 6);
+      this.buffer = buffer.order(ByteOrder.nativeOrder());
+      this.lit    = this.buffer.slice(0, words * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+      this.typeAt = words * 8;
+      this.metaAt = typeAt + width * height;
+   }
+
+   // Bytes a width x height map needs
+   private static int bytesFor(int width, int height) {
+      long tiles = (long) width * height;
+      long bytes = ((tiles + 63) >>> 6) * 8 + 2 * tiles;
+      if (bytes > Integer.MAX_VALUE)
+         throw new IllegalArgumentException(width + "x" + height + " is too many tiles for one buffer");
+      return (int) bytes;
+   }
+
+   /**
+    * Make an empty map in a buffer on the Java heap
+    */
+   public static BufferTileMap onHeap(int width, int height) {
+      return new BufferTileMap(width, height, ByteBuffer.allocate(bytesFor(width, height)));
+   }
+
+   /**
+    * Make an empty map in a direct buffer, outside the Java heap
+    */
+   public static BufferTileMap offHeap(int width, int height) {
+      return new BufferTileMap(width, height, ByteBuffer.allocateDirect(bytesFor(width, height)));
+   }
+
+   /**
+    * Make a map in a file mapped into memory. The file is made if need be
+    * and sized to fit, and whatever it held is what the map starts with.
+    * @param file - the file to map
+    */
+   public static BufferTileMap mapped(int width, int height, Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, 
+                                                  StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         int bytes = bytesFor(width, height);
+         return new BufferTileMap(width, height, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+      }
+   }
+
+   @Override
+   public int getType(int x, int y) {
+      return buffer.get(typeAt + x * height + y) & 0xFF;
+   }
+
+   @Override
+   public void setType(int x, int y, int type) {
+      buffer.put(typeAt + x * height + y, (byte) type);
+   }
+
+   @Override
+   public boolean isLit(int x, int y) {
+      int bit = x * height + y;
+      return (lit.get(bit >>> 6) & (1L << bit)) != 0;
+   }
+
+   @Override
+   public void setLit(int x, int y, boolean value) {
+      int bit = x * height + y;
+      long word = lit.get(bit >>> 6);
+      lit.put(bit >>> 6, value ? (word | (1L << bit)) : (word & ~(1L << bit)));
+   }
+
+   @Override
+   public void setAllLit(boolean value) {
+      long word = value ? -1L : 0L;
+      for (int i = 0; i < lit.capacity(); i++)
+         lit.put(i, word);
+   }
+
+   @Override
+   public void copyLit(long[] words) {
+      lit.get(0, words, 0, lit.capacity());
+   }
+
+   @Override
+   public int getMeta(int x, int y) {
+      return buffer.get(metaAt + x * height + y) & 0xFF;
+   }
+
+   @Override
+   public void setMeta(int x, int y, int meta) {
+      buffer.put(metaAt + x * height + y, (byte) meta);
+   }
+
+   @Override
+   public long getBytes() {
+      return buffer.capacity();
+   }
+
+   /**
+    * Is the map outside the Java heap
+    */
+   public boolean isDirect() {
+      return buffer.isDirect();
+   }
+}
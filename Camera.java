@@ -0,0 +1,52 @@
+/**
+ * Which part of a World is in view. Each World has its own, so several
+ * worlds can be played in the same JVM.
+ */
+public class Camera {
+   private int offSetX = 0;          // world x of the leftmost column in view
+   private int offSetY = 0;          // world y of the bottom row in view
+
+   /**
+    * Centre the view on a location, without showing anything off the edge of the world
+    * @param x           - the x location to centre on
+    * @param y           - the y location to centre on
+    * @param width       - width of the world in tiles
+    * @param height      - height of the world in tiles
+    * @param windowSizeX - width of the view in tiles
+    * @param windowSizeY - height of the view in tiles
+    */
+   public void follow(int x, int y, int width, int height, int windowSizeX, int windowSizeY) {
+      offSetX = x - windowSizeX / 2;
+      offSetY = y - windowSizeY / 2;      
+      if (offSetX < 0) offSetX = 0;
+      if (offSetY < 0) offSetY = 0;
+      if (offSetX > width - windowSizeX) offSetX = width - windowSizeX;
+      if (offSetY > height - windowSizeY) offSetY = height - windowSizeY;
+   }
+
+   public int getOffSetX() {
+      return offSetX;
+   }
+
+   public int getOffSetY() {
+      return offSetY;
+   }
+
+   /**
+    * Where the centre of a column is drawn
+    * @param x - the world x location
+    * @return the drawing x coordinate
+    */
+   public double screenX(int x) {
+      return (x + 0.5 - offSetX) * Tile.SIZE;
+   }
+
+   /**
+    * Where the centre of a row is drawn
+    * @param y - the world y location
+    * @return the drawing y coordinate
+    */
+   public double screenY(int y) {
+      return (y + 0.5 - offSetY) * Tile.SIZE;
+   }
+}
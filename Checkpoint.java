@@ -0,0 +1,386 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Saves and restores the full state of a running World: tiles, lit tiles,
+ * the avatar and every monster, in a compact versioned binary format.
+ *
+ * A full checkpoint holds everything. A delta checkpoint only holds the lit
+ * words, monsters and removed monsters that changed since the previous
+ * checkpoint written by the same Checkpoint object, so a large world can be
+ * saved every few seconds. Restore a full checkpoint followed by its deltas
+ * in order. The World lock is only held while the state is copied, encoding
+ * and writing happen after it is released.
+ *
+ * Monster randomness can't be saved, restored monsters get fresh randomness
+ * split from the world's seed.
+ */
+public class Checkpoint {
+   public static final int MAGIC   = 0x55434B50;    // "UCKP"
+   public static final int VERSION = 2;
+
+   private static final byte FULL  = 0;
+   private static final byte DELTA = 1;
+   private static final int MONSTER_BYTES = 4 + 1 + 1 + 6 * 4 + 8 + 8;
+
+   private final World world;          // the world being checkpointed
+   private State last = null;          // what the previous checkpoint held, deltas are taken against it
+   private int sequence = 0;           // number of checkpoints written so far
+
+   /**
+    * Everything needed to rebuild a World, monsters are kept sorted by handle
+    */
+   public static class State {
+      long time, seed;
+      int width, height;
+      byte[] tiles;                                // tile type id of tile (x * height + y)
+      long[] lit;                                  // bit (x * height + y) set if lit
+      int avatarX, avatarY, avatarHp;
+      double avatarTorch;
+      byte avatarFacing;
+      int numMonsters;
+      int[] handle, x, y, hp, attackDamage, sleepMs, aggroRadius;
+      byte[] type, moveType;
+      long[] due;                                  // when each monster moves next, Long.MAX_VALUE if dormant
+      long[] damagedMs;                            // game time in ms each monster last took damage, 0 if never
+
+      /**
+       * Make room for n monsters
+       */
+      void resize(int n) {
+         handle       = new int[n];
+         x            = new int[n];
+         y            = new int[n];
+         hp           = new int[n];
+         attackDamage = new int[n];
+         sleepMs      = new int[n];
+         aggroRadius  = new int[n];
+         type         = new byte[n];
+         moveType     = new byte[n];
+         due          = new long[n];
+         damagedMs    = new long[n];
+      }
+
+      /**
+       * Copy monster i of another state into slot j of this one
+       */
+      void copyMonster(State from, int i, int j) {
+         handle[j]       = from.handle[i];
+         x[j]            = from.x[i];
+         y[j]            = from.y[i];
+         hp[j]           = from.hp[i];
+         attackDamage[j] = from.attackDamage[i];
+         sleepMs[j]      = from.sleepMs[i];
+         aggroRadius[j]  = from.aggroRadius[i];
+         type[j]         = from.type[i];
+         moveType[j]     = from.moveType[i];
+         due[j]          = from.due[i];
+         damagedMs[j]    = from.damagedMs[i];
+      }
+
+      boolean sameMonster(int i, State other, int j) {
+         return (x[i] == other.x[j]) && (y[i] == other.y[j]) && (hp[i] == other.hp[j]) 
+             && (due[i] == other.due[j]) && (moveType[i] == other.moveType[j])
+             && (attackDamage[i] == other.attackDamage[j]) && (sleepMs[i] == other.sleepMs[j]) 
+             && (aggroRadius[i] == other.aggroRadius[j]) && (type[i] == other.type[j])
+             && (damagedMs[i] == other.damagedMs[j]);
+      }
+
+      /**
+       * Sort the monsters by handle, so two states can be compared with a merge
+       */
+      void sortByHandle() {
+         long[] keys = new long[numMonsters];
+         for (int i = 0; i < numMonsters; i++)
+            keys[i] = ((long) handle[i] << 32) | i;
+         Arrays.sort(keys);
+         State from = new State();
+         from.handle = handle; from.x = x; from.y = y; from.hp = hp; from.attackDamage = attackDamage;
+         from.sleepMs = sleepMs; from.aggroRadius = aggroRadius; from.type = type; from.moveType = moveType;
+         from.due = due; from.damagedMs = damagedMs;
+         resize(numMonsters);
+         for (int j = 0; j < numMonsters; j++)
+            copyMonster(from, (int) keys[j], j);
+      }
+   }
+
+   /**
+    * Create a checkpointer for a world
+    * @param world - the world to save
+    */
+   public Checkpoint(World world) {
+      this.world = world;
+   }
+
+   /**
+    * Save the world's state. The first checkpoint is always a full one.
+    * @param filename - the file to write
+    * @param delta    - true to only write what changed since the previous checkpoint
+    * @return the number of bytes written
+    * @throws IOException if the file can't be written
+    */
+   public synchronized int save(String filename, boolean delta) throws IOException {
+      State state = new State();
+      world.captureState(state);
+      state.sortByHandle();
+   
+      ByteBuffer buffer = (delta && (last != null)) ? encodeDelta(last, state) : encodeFull(state);
+      buffer.flip();
+      int bytes = buffer.remaining();
+      try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                                                  StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+      }
+      last = state;
+      sequence++;
+      return bytes;
+   }
+
+   private void putHeader(ByteBuffer out, byte kind, State state) {
+      out.putInt(MAGIC);
+      out.putShort((short) VERSION);
+      out.put(kind);
+      out.putInt(sequence);
+      out.putLong(state.time);
+      out.putLong(state.seed);
+      out.putInt(state.width);
+      out.putInt(state.height);
+   }
+
+   private static void putAvatar(ByteBuffer out, State state) {
+      out.putInt(state.avatarX);
+      out.putInt(state.avatarY);
+      out.putInt(state.avatarHp);
+      out.putDouble(state.avatarTorch);
+      out.put(state.avatarFacing);
+   }
+
+   private static void putMonster(ByteBuffer out, State state, int i) {
+      out.putInt(state.handle[i]);
+      out.put(state.type[i]);
+      out.put(state.moveType[i]);
+      out.putInt(state.x[i]);
+      out.putInt(state.y[i]);
+      out.putInt(state.hp[i]);
+      out.putInt(state.attackDamage[i]);
+      out.putInt(state.sleepMs[i]);
+      out.putInt(state.aggroRadius[i]);
+      out.putLong(state.due[i]);
+      out.putLong(state.damagedMs[i]);
+   }
+
+   private ByteBuffer encodeFull(State state) {
+      ByteBuffer out = ByteBuffer.allocate(64 + state.tiles.length + 8 * state.lit.length 
+                                           + MONSTER_BYTES * state.numMonsters);
+      putHeader(out, FULL, state);
+      out.put(state.tiles);
+      out.putInt(state.lit.length);
+      for (long word : state.lit)
+         out.putLong(word);
+      putAvatar(out, state);
+      out.putInt(state.numMonsters);
+      for (int i = 0; i < state.numMonsters; i++)
+         putMonster(out, state, i);
+      return out;
+   }
+
+   private ByteBuffer encodeDelta(State before, State after) {
+      // Tile types never change while playing, only lit words and monsters are compared
+      int changedWords = 0;
+      for (int i = 0; i < after.lit.length; i++)
+         if (after.lit[i] != before.lit[i])
+            changedWords++;
+   
+      // Merge the two handle-sorted monster lists
+      int[] changed = new int[after.numMonsters];
+      int[] removed = new int[before.numMonsters];
+      int numChanged = 0, numRemoved = 0;
+      int i = 0, j = 0;
+      while ((i < before.numMonsters) || (j < after.numMonsters)) {
+         if ((j == after.numMonsters) || ((i < before.numMonsters) && (before.handle[i] < after.handle[j]))) {
+            removed[numRemoved++] = before.handle[i++];
+         } else if ((i == before.numMonsters) || (after.handle[j] < before.handle[i])) {
+            changed[numChanged++] = j++;
+         } else {
+            if (!after.sameMonster(j, before, i))
+               changed[numChanged++] = j;
+            i++;
+            j++;
+         }
+      }
+   
+      ByteBuffer out = ByteBuffer.allocate(64 + 12 * changedWords + MONSTER_BYTES * numChanged + 4 * numRemoved + 32);
+      putHeader(out, DELTA, after);
+      out.putInt(changedWords);
+      for (int w = 0; w < after.lit.length; w++) {
+         if (after.lit[w] != before.lit[w]) {
+            out.putInt(w);
+            out.putLong(after.lit[w]);
+         }
+      }
+      putAvatar(out, after);
+      out.putInt(numChanged);
+      for (int k = 0; k < numChanged; k++)
+         putMonster(out, after, changed[k]);
+      out.putInt(numRemoved);
+      for (int k = 0; k < numRemoved; k++)
+         out.putInt(removed[k]);
+      return out;
+   }
+
+   /**
+    * Restore a world from a full checkpoint followed by any number of deltas
+    * @param world     - the world to restore into, loaded from the same level
+    * @param filenames - the full checkpoint, then its deltas in the order they were written
+    * @throws IOException if a file can't be read or the files don't form a chain
+    */
+   public static void restore(World world, String... filenames) throws IOException {
+      State state = null;
+      int expected = -1;
+      for (String filename : filenames) {
+         ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+         if ((in.getInt() != MAGIC) || (in.getShort() != VERSION))
+            throw new IOException(filename + " is not a checkpoint");
+         byte kind = in.get();
+         int seq = in.getInt();
+         if ((state == null) != (kind == FULL))
+            throw new IOException(filename + ": expected a " + ((state == null) ? "full" : "delta") + " checkpoint");
+         if ((state != null) && (seq != expected))
+            throw new IOException(filename + ": expected checkpoint " + expected + " but found " + seq);
+      
+         State next = new State();
+         next.time   = in.getLong();
+         next.seed   = in.getLong();
+         next.width  = in.getInt();
+         next.height = in.getInt();
+         if (kind == FULL) {
+            next.tiles = new byte[next.width * next.height];
+            in.get(next.tiles);
+            next.lit = new long[in.getInt()];
+            for (int w = 0; w < next.lit.length; w++)
+               next.lit[w] = in.getLong();
+            getAvatar(in, next);
+            next.numMonsters = in.getInt();
+            next.resize(next.numMonsters);
+            for (int i = 0; i < next.numMonsters; i++)
+               getMonster(in, next, i);
+         } else {
+            next.tiles = state.tiles;
+            next.lit = state.lit.clone();
+            int changedWords = in.getInt();
+            for (int k = 0; k < changedWords; k++) {
+               int w = in.getInt();
+               next.lit[w] = in.getLong();
+            }
+            getAvatar(in, next);
+            applyMonsterDelta(in, state, next);
+         }
+         state = next;
+         expected = seq + 1;
+      }
+      if (state == null)
+         throw new IOException("no checkpoint given");
+      world.restoreState(state);
+   }
+
+   private static void getAvatar(ByteBuffer in, State state) {
+      state.avatarX      = in.getInt();
+      state.avatarY      = in.getInt();
+      state.avatarHp     = in.getInt();
+      state.avatarTorch  = in.getDouble();
+      state.avatarFacing = in.get();
+   }
+
+   private static void getMonster(ByteBuffer in, State state, int i) {
+      state.handle[i]       = in.getInt();
+      state.type[i]         = in.get();
+      state.moveType[i]     = in.get();
+      state.x[i]            = in.getInt();
+      state.y[i]            = in.getInt();
+      state.hp[i]           = in.getInt();
+      state.attackDamage[i] = in.getInt();
+      state.sleepMs[i]      = in.getInt();
+      state.aggroRadius[i]  = in.getInt();
+      state.due[i]          = in.getLong();
+      state.damagedMs[i]    = in.getLong();
+   }
+
+   // Merge the changed and removed monsters of a delta into the previous state's handle-sorted list
+   private static void applyMonsterDelta(ByteBuffer in, State before, State after) {
+      State changed = new State();
+      changed.numMonsters = in.getInt();
+      changed.resize(changed.numMonsters);
+      for (int k = 0; k < changed.numMonsters; k++)
+         getMonster(in, changed, k);
+      int[] removed = new int[in.getInt()];
+      for (int k = 0; k < removed.length; k++)
+         removed[k] = in.getInt();
+   
+      after.resize(before.numMonsters + changed.numMonsters);
+      int n = 0, i = 0, j = 0, r = 0;
+      while ((i < before.numMonsters) || (j < changed.numMonsters)) {
+         if ((j == changed.numMonsters) || ((i < before.numMonsters) && (before.handle[i] < changed.handle[j]))) {
+            while ((r < removed.length) && (removed[r] < before.handle[i]))
+               r++;
+            if ((r < removed.length) && (removed[r] == before.handle[i]))
+               i++;
+            else
+               after.copyMonster(before, i++, n++);
+         } else {
+            if ((i < before.numMonsters) && (before.handle[i] == changed.handle[j]))
+               i++;
+            after.copyMonster(changed, j++, n++);
+         }
+      }
+      after.numMonsters = n;
+   }
+
+   /**
+    * Test main method, plays a world for a while, checkpoints it and
+    * checks a restored copy matches
+    */
+   public static void main(String[] args) throws IOException {
+      final String level = (args.length > 0) ? args[0] : "40x40.txt";
+      final long SECOND = 1000000000L;
+      World world = new World(level, 42, false);
+      Checkpoint checkpoint = new Checkpoint(world);
+      Random random = new Random(7);
+      char[] keys = {'w', 'a', 's', 'd', 'q', '+', '-'};
+   
+      File full = File.createTempFile("ultima", ".ckp");
+      File delta = File.createTempFile("ultima", ".ckp");
+      full.deleteOnExit();
+      delta.deleteOnExit();
+   
+      long now = 0;
+      for (int i = 0; i < 3; i++) {
+         now += 10 * SECOND;
+         for (long t = now - 10 * SECOND; t < now; t += SECOND / 4) {
+            world.moveMonsters(t);
+            world.handleKey(keys[random.nextInt(keys.length)]);
+         }
+         world.moveMonsters(now);
+         String filename = (i == 0) ? full.getPath() : delta.getPath();
+         if (i == 2) {
+            // a second delta, chained after the first
+            File delta2 = File.createTempFile("ultima", ".ckp");
+            delta2.deleteOnExit();
+            filename = delta2.getPath();
+            Stats stats = new Stats();
+            int bytes = checkpoint.save(filename, true);
+            System.out.printf("delta %d bytes in %.3f s\n", bytes, stats.elapsedTime());
+            World copy = new World(level, 42, false);
+            restore(copy, full.getPath(), delta.getPath(), filename);
+            System.out.printf("original %016x, restored %016x\n", world.checksum(), copy.checksum());
+         } else {
+            Stats stats = new Stats();
+            int bytes = checkpoint.save(filename, i > 0);
+            System.out.printf("%s %d bytes in %.3f s\n", (i == 0) ? "full" : "delta", bytes, stats.elapsedTime());
+         }
+      }
+   }
+}
@@ -0,0 +1,72 @@
+/**
+ * Where game time comes from. Everything that times the game, monster moves,
+ * avatar input and how long health is shown, reads one of these instead of
+ * the system clock. A real time clock follows the wall clock, a virtual one
+ * jumps straight to whatever is due next, so headless games can play hours
+ * of game time in seconds and still come out the same.
+ */
+public interface GameClock {
+
+   /**
+    * The current game time
+    * @return nanoseconds since the clock started
+    */
+   long now();
+
+   /**
+    * Wait until the given game time, returning early if the input has a key
+    * @param time  - the game time to wait for, Long.MAX_VALUE for no limit
+    * @param input - keys that end the wait early
+    */
+   void waitUntil(long time, KeyInput input);
+
+   /**
+    * Game time that follows the wall clock, for playing in a window
+    */
+   public static class RealTime implements GameClock {
+      private final long start = System.nanoTime();   // game time runs from here
+   
+      @Override
+      public long now() {
+         return System.nanoTime() - start;
+      }
+   
+      @Override
+      public void waitUntil(long time, KeyInput input) {
+         input.waitForInput(time - now());
+      }
+   }
+
+   /**
+    * Game time that only moves when told to. Waiting jumps straight to the
+    * time waited for, so the game runs as fast as the work gets done.
+    */
+   public static class Virtual implements GameClock {
+      private volatile long time = 0;
+   
+      @Override
+      public long now() {
+         return time;
+      }
+   
+      /**
+       * Jump to the time waited for without sleeping. Keys have to be typed 
+       * by the thread playing the game, so waiting for them with nothing 
+       * else due returns at once rather than never.
+       */
+      @Override
+      public void waitUntil(long time, KeyInput input) {
+         if (time != Long.MAX_VALUE)
+            advanceTo(time);
+      }
+   
+      /**
+       * Move game time forward, never back
+       * @param time - the new game time in nanoseconds
+       */
+      public void advanceTo(long time) {
+         if (time > this.time)
+            this.time = time;
+      }
+   }
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Serves headless worlds over TCP. Each connection gets its own World,
+ * played by a WorldHost; one selector thread does all the socket work.
+ *
+ * Every frame is a 2 byte length (of what follows), a 1 byte type and the
+ * payload. Clients send COMMAND frames holding one key, the same keys
+ * handleKeyPress acts on: w a s d to move, + and - for the torch, q to dash,
+ * and ACK frames with the number of the last view they decoded. The server
+ * sends a VIEW frame whenever the world changes, a ViewFrame delta encoded
+ * by ViewDelta against the last acknowledged view, and an END frame once
+ * the game is over. Frames for a connection are
+ * gathered in one buffer and written together; if a client falls behind,
+ * older views it hasn't been sent yet are replaced by the newest one.
+ */
+public class GameServer implements Runnable {
+   public static final int DEFAULT_PORT = 7777;
+
+   public static final byte COMMAND = 1;          // client to server: 1 byte key
+   public static final byte VIEW    = 2;          // server to client: a ViewFrame
+   public static final byte END     = 3;          // server to client: 1 byte, 1 if the player won
+   public static final byte ACK     = 4;          // client to server: 4 byte number of the last view decoded
+
+   private static final String COMMANDS = "wasdWASDqQ+=-";
+   private static final int OUTBOX_BYTES = 8192;  // unsent bytes kept per connection
+   private static final int INBOX_BYTES  = 256;
+
+   private final String level;
+   private final WorldHost host;
+   private final Selector selector;
+   private final ServerSocketChannel server;
+   private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();  // connections with new frames to send
+   private final AtomicInteger numConnections = new AtomicInteger();
+   private final Random seeds = new Random();
+
+   /**
+    * One client and the world it is playing
+    */
+   private class Connection {
+      private final SocketChannel channel;
+      private final SelectionKey key;
+      private final ByteBuffer in  = ByteBuffer.allocate(INBOX_BYTES);          // selector thread only
+      private final ByteBuffer out = ByteBuffer.allocate(OUTBOX_BYTES);         // selector thread only
+      private final AtomicReference<byte[]> view = new AtomicReference<>();    // newest unsent view frame
+      private final AtomicBoolean queued = new AtomicBoolean();                 // waiting in ready
+      private final ViewDelta.Encoder encoder = new ViewDelta.Encoder();        // world thread, acks from the selector thread
+      private volatile byte[] end = null;                                       // END frame, once the game is over
+      private volatile WorldHost.Session session = null;
+      private volatile boolean closed = false;
+      private boolean endSent = false;                                          // selector thread only
+      private long sentVersion = -1;                                            // world thread only
+   
+      private Connection(SocketChannel channel, SelectionKey key) {
+         this.channel = channel;
+         this.key     = key;
+      }
+   }
+
+   /**
+    * Create a server, ready to run
+    * @param port    - the port to listen on, 0 for any free port
+    * @param level   - the level file every world is loaded from
+    * @param threads - worker threads playing the worlds
+    * @throws IOException if the port can't be opened
+    */
+   public GameServer(int port, String level, int threads) throws IOException {
+      this.level = level;
+      host = new WorldHost(threads);
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port), 4096);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+   }
+
+   /**
+    * Accessor for the port being listened on
+    */
+   public int getPort() throws IOException {
+      return ((InetSocketAddress) server.getLocalAddress()).getPort();
+   }
+
+   /**
+    * How many clients are connected
+    */
+   public int getNumConnections() {
+      return numConnections.get();
+   }
+
+   /**
+    * The selector loop, runs until the thread is interrupted
+    */
+   @Override
+   public void run() {
+      try {
+         while (!Thread.currentThread().isInterrupted()) {
+            selector.select();
+         
+            Connection conn;
+            while ((conn = ready.poll()) != null) {
+               conn.queued.set(false);
+               if (!conn.closed)
+                  flush(conn);
+            }
+         
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+               SelectionKey key = it.next();
+               it.remove();
+               if (!key.isValid())
+                  continue;
+               if (key.isAcceptable()) {
+                  accept();
+                  continue;
+               }
+               conn = (Connection) key.attachment();
+               if (key.isReadable())
+                  read(conn);
+               if (key.isValid() && key.isWritable())
+                  flush(conn);
+            }
+         }
+      } catch (IOException e) {
+         System.out.println("Server stopped: " + e);
+      } finally {
+         host.shutdown();
+      }
+   }
+
+   private void accept() throws IOException {
+      SocketChannel channel;
+      while ((channel = server.accept()) != null) {
+         channel.configureBlocking(false);
+         channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+         SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+         Connection conn = new Connection(channel, key);
+         key.attach(conn);
+         numConnections.incrementAndGet();
+      
+         // Loading a level takes a while, keep it off the selector thread
+         long seed = seeds.nextLong();
+         ForkJoinPool.commonPool().execute(() -> {
+            conn.session = host.host(level, seed, session -> stepped(conn, session));
+            if (conn.closed)
+               conn.session.close();
+         });
+      }
+   }
+
+   // Called on a world thread after the world has run, queues a view if it changed
+   private void stepped(Connection conn, WorldHost.Session session) {
+      World world = session.getWorld();
+      long version = world.getVersion();
+      if (version != conn.sentVersion) {
+         conn.sentVersion = version;
+         world.publishSnapshot();
+         ViewFrame frame = ViewFrame.capture(world, world.getSnapshot());
+         ByteBuffer buffer = ByteBuffer.allocate(3 + 10 + frame.encodedSize());
+         buffer.position(2);
+         buffer.put(VIEW);
+         conn.encoder.encode(frame, buffer);
+         buffer.putShort(0, (short) (buffer.position() - 2));
+         conn.view.set(Arrays.copyOf(buffer.array(), buffer.position()));
+      }
+      if (session.isFinished())
+         conn.end = new byte[] {0, 2, END, (byte) ((world.getNumMonsters() == 0) ? 1 : 0)};
+      if (conn.queued.compareAndSet(false, true)) {
+         ready.add(conn);
+         selector.wakeup();
+      }
+   }
+
+   // Read whatever commands have arrived
+   private void read(Connection conn) {
+      ByteBuffer in = conn.in;
+      try {
+         if (conn.channel.read(in) < 0) {
+            close(conn);
+            return;
+         }
+      } catch (IOException e) {
+         close(conn);
+         return;
+      }
+      in.flip();
+      while (in.remaining() >= 2) {
+         int length = in.getShort(in.position()) & 0xFFFF;
+         if ((length < 1) || (length > INBOX_BYTES - 2)) {
+            close(conn);
+            return;
+         }
+         if (in.remaining() < 2 + length)
+            break;
+         in.getShort();
+         byte type = in.get();
+         if ((type == COMMAND) && (length == 2)) {
+            char key = (char) in.get();
+            WorldHost.Session session = conn.session;
+            if ((session != null) && (COMMANDS.indexOf(key) >= 0))
+               session.getWorld().getInput().typed(key);
+         } else if ((type == ACK) && (length == 5)) {
+            conn.encoder.ack(in.getInt());
+         } else {
+            close(conn);
+            return;
+         }
+      }
+      in.compact();
+   }
+
+   // Move queued frames into the connection's buffer and write as much as the socket takes
+   private void flush(Connection conn) {
+      ByteBuffer out = conn.out;
+      byte[] view = conn.view.getAndSet(null);
+      if (view != null) {
+         if (out.remaining() >= view.length)
+            out.put(view);
+         else
+            conn.view.compareAndSet(null, view);     // no room, send it once the socket drains unless a newer one comes
+      }
+      byte[] end = conn.end;
+      if ((end != null) && !conn.endSent && (conn.view.get() == null) && (out.remaining() >= end.length)) {
+         out.put(end);
+         conn.endSent = true;
+      }
+   
+      try {
+         out.flip();
+         conn.channel.write(out);
+         out.compact();
+      } catch (IOException e) {
+         close(conn);
+         return;
+      }
+      boolean pending = (out.position() > 0) || (conn.view.get() != null);
+      if (pending)
+         conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      else if (conn.endSent)
+         close(conn);
+      else
+         conn.key.interestOps(SelectionKey.OP_READ);
+   }
+
+   private void close(Connection conn) {
+      if (conn.closed)
+         return;
+      conn.closed = true;
+      conn.key.cancel();
+      try {
+         conn.channel.close();
+      } catch (IOException e) {
+         // nothing more to do with it
+      }
+      WorldHost.Session session = conn.session;
+      if (session != null)
+         session.close();
+      numConnections.decrementAndGet();
+   }
+
+   /**
+    * Run a server. Arguments: [port] [level] [threads]
+    */
+   public static void main(String[] args) throws IOException {
+      int port      = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+      String level  = (args.length > 1) ? args[1] : "40x40.txt";
+      int threads   = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      GameServer server = new GameServer(port, level, threads);
+      System.out.println("Serving " + level + " on port " + server.getPort());
+      server.run();
+   }
+}
@@ -0,0 +1,224 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+ * Decoded images by file name, least recently used first out once the
+ * decoded pixels add up to more than a set number of bytes. Safe to use
+ * from several threads. When an image is asked for while another thread
+ * is still loading it, the second thread waits for that load rather than
+ * starting its own.
+ */
+public class ImageCache {
+   private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+   private final Map<String, CompletableFuture<BufferedImage>> loading = new HashMap<>();
+   private long capacityBytes;                  // most bytes of pixels kept
+   private long bytes = 0;                      // bytes of pixels kept now
+   private long hits = 0, misses = 0, evictions = 0;
+
+   /**
+    * Create an empty cache
+    * @param capacityBytes - most bytes of decoded pixels to keep
+    */
+   public ImageCache(long capacityBytes) {
+      this.capacityBytes = capacityBytes;
+   }
+
+   /**
+    * Get an image, loading it if it isn't kept
+    * @param filename - name of the image
+    * @param loader   - loads the image if need be, throwing IllegalArgumentException if it can't
+    * @return the image
+    */
+   public BufferedImage get(String filename, Function<String, BufferedImage> loader) {
+      CompletableFuture<BufferedImage> load;
+      boolean mine = false;
+      synchronized (this) {
+         BufferedImage image = images.get(filename);
+         if (image != null) {
+            hits++;
+            return image;
+         }
+         misses++;
+         load = loading.get(filename);
+         if (load == null) {
+            load = new CompletableFuture<>();
+            loading.put(filename, load);
+            mine = true;
+         }
+      }
+   
+      if (!mine) {
+         try {
+            return load.join();
+         } catch (CompletionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+         }
+      }
+      try {
+         BufferedImage image = loader.apply(filename);
+         synchronized (this) {
+            loading.remove(filename);
+            put(filename, image);
+         }
+         load.complete(image);
+         return image;
+      } catch (RuntimeException e) {
+         synchronized (this) {
+            loading.remove(filename);
+         }
+         load.completeExceptionally(e);
+         throw e;
+      }
+   }
+
+   // Keep an image, then drop the least recently used ones until the rest fit,
+   // though never the one just added
+   private void put(String filename, BufferedImage image) {
+      BufferedImage old = images.put(filename, image);
+      if (old != null)
+         bytes -= sizeOf(old);
+      bytes += sizeOf(image);
+      Iterator<Map.Entry<String, BufferedImage>> eldest = images.entrySet().iterator();
+      while ((bytes > capacityBytes) && (images.size() > 1)) {
+         Map.Entry<String, BufferedImage> entry = eldest.next();
+         bytes -= sizeOf(entry.getValue());
+         eldest.remove();
+         evictions++;
+      }
+   }
+
+   /**
+    * Bytes of pixel data held by an image
+    */
+   public static long sizeOf(BufferedImage image) {
+      DataBuffer buffer = image.getRaster().getDataBuffer();
+      return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+   }
+
+   /**
+    * Change how many bytes of pixels are kept, dropping images if need be
+    */
+   public synchronized void setCapacity(long capacityBytes) {
+      this.capacityBytes = capacityBytes;
+      Iterator<Map.Entry<String, BufferedImage>> eldest = images.entrySet().iterator();
+      while ((bytes > capacityBytes) && eldest.hasNext()) {
+         bytes -= sizeOf(eldest.next().getValue());
+         eldest.remove();
+         evictions++;
+      }
+   }
+
+   /**
+    * Drop every image
+    */
+   public synchronized void clear() {
+      images.clear();
+      bytes = 0;
+   }
+
+   public synchronized long getBytes() {
+      return bytes;
+   }
+
+   public synchronized int size() {
+      return images.size();
+   }
+
+   /**
+    * Counts of lookups so far
+    * @return {found kept, had to be loaded, images dropped to make room}
+    */
+   public synchronized long[] getStats() {
+      return new long[] {hits, misses, evictions};
+   }
+
+   /**
+    * Decode an image with ImageIO, from a file, a resource next to this
+    * class, or a URL, in that order
+    * @param filename - the file name, URL or resource name
+    * @return the decoded image
+    * @throws IllegalArgumentException if it isn't found or can't be decoded, saying why
+    */
+   public static BufferedImage decode(String filename) {
+      try {
+         BufferedImage image = null;
+         File file = new File(filename);
+         if (file.isFile()) {
+            image = ImageIO.read(file);
+         } else {
+            URL url = ImageCache.class.getResource(filename);
+            if (url == null) {
+               try {
+                  url = new URL(filename);
+               } catch (IOException e) {
+                  throw new IllegalArgumentException("image " + filename + " not found");
+               }
+            }
+            image = ImageIO.read(url);
+         }
+         if (image == null)
+            throw new IllegalArgumentException("image " + filename + " is not in a format ImageIO can read");
+         return image;
+      } catch (IOException e) {
+         throw new IllegalArgumentException("image " + filename + " could not be read: " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Benchmark, times loading the game's images cold with ImageIcon and with
+    * ImageIO, then fills a small cache to show it staying in its bounds
+    */
+   public static void main(String[] args) {
+      String[] files = new java.io.File(".").list((dir, name) -> name.startsWith("img-") || name.equals("RF.png") || name.equals("NJ.png"));
+      java.util.Arrays.sort(files);
+   
+      // Both start up on the first image, the rest are timed. Each image is
+      // only loaded once each way, as the toolkit behind ImageIcon keeps them,
+      // taking turns at going first to the file.
+      new ImageIcon(files[0]).getImage();
+      long decodedBytes = sizeOf(decode(files[0]));
+      long icon = 0, imageio = 0;
+      for (int i = 1; i < files.length; i++) {
+         for (int way = 0; way < 2; way++) {
+            long start = System.nanoTime();
+            if ((way + i) % 2 == 0) {
+               new ImageIcon(files[i]).getImage();
+               icon += System.nanoTime() - start;
+            } else {
+               decodedBytes += sizeOf(decode(files[i]));
+               imageio += System.nanoTime() - start;
+            }
+         }
+      }
+      System.out.printf("%d images cold: ImageIcon %.1f ms, ImageIO %.1f ms, %d KB decoded\n", 
+                        files.length - 1, icon / 1e6, imageio / 1e6, decodedBytes / 1024);
+   
+      // Every image once, then the last few over and over
+      ImageCache cache = new ImageCache(decodedBytes / 2);
+      for (String file : files)
+         cache.get(file, ImageCache::decode);
+      for (int pass = 0; pass < 3; pass++)
+         for (int i = files.length - files.length / 4; i < files.length; i++)
+            cache.get(files[i], ImageCache::decode);
+      long[] stats = cache.getStats();
+      System.out.printf("cache of %d KB: holds %d images in %d KB, %d hits, %d misses, %d evicted\n", 
+                        decodedBytes / 2 / 1024, cache.size(), cache.getBytes() / 1024, stats[0], stats[1], stats[2]);
+      try {
+         cache.get("img-missing.png", ImageCache::decode);
+      } catch (IllegalArgumentException e) {
+         System.out.println("missing image: " + e.getMessage());
+      }
+   }
+}
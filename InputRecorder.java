@@ -0,0 +1,94 @@
+import java.io.*;
+
+/**
+ * Records the avatar's actions to a compact binary log, so a session can be
+ * replayed exactly (see Replay). The log holds the level and the world's seed,
+ * then one record per action: the game time since the previous record in
+ * nanoseconds as a variable length number, then the key as one byte. A record
+ * with key 0 marks the game time the session ended at.
+ */
+public class InputRecorder {
+   public static final int MAGIC   = 0x554C4F47;    // "ULOG"
+   public static final int VERSION = 1;
+
+   private DataOutputStream out;                    // null once closed or failed
+   private long lastNanos = 0;                      // game time of the previous record
+
+   /**
+    * Start a new log
+    * @param filename - the file to write the log to
+    * @param level    - the level file the session is played on
+    * @param seed     - the seed of the world's randomness
+    * @throws IOException if the file can't be written
+    */
+   public InputRecorder(String filename, String level, long seed) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(seed);
+      out.writeUTF(level);
+   }
+
+   /**
+    * Record an avatar action
+    * @param nanos - the game time of the action
+    * @param key   - the key for the action
+    */
+   public synchronized void record(long nanos, char key) {
+      write(nanos, (byte) key);
+   }
+
+   /**
+    * Mark the end of the session and close the log
+    * @param nanos - the game time the session ended at
+    */
+   public synchronized void close(long nanos) {
+      write(nanos, (byte) 0);
+      if (out == null)
+         return;
+      try {
+         out.close();
+      } catch (IOException e) {
+         System.out.println("Failed to close input log: " + e.getMessage());
+      }
+      out = null;
+   }
+
+   private void write(long nanos, byte key) {
+      if (out == null)
+         return;
+      try {
+         writeVarLong(out, nanos - lastNanos);
+         out.writeByte(key);
+         lastNanos = nanos;
+      } catch (IOException e) {
+         System.out.println("Failed to record input, recording stopped: " + e.getMessage());
+         out = null;
+      }
+   }
+
+   /**
+    * Write a non-negative number seven bits at a time, low bits first
+    */
+   public static void writeVarLong(DataOutput out, long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.writeByte((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.writeByte((int) value);
+   }
+
+   /**
+    * Read a number written by writeVarLong
+    */
+   public static long readVarLong(DataInput in) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = in.readUnsignedByte();
+         value |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("malformed number");
+   }
+}
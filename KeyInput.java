@@ -0,0 +1,138 @@
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keyboard state for one World. Typed keys go through a single producer /
+ * single consumer ring buffer with timestamps, pressed keys are a bitset.
+ * One thread feeds the keys in (the event dispatch thread for the window,
+ * a network thread for a hosted world) and one thread plays the World.
+ */
+public class KeyInput {
+   private static final int KEY_BUFFER_SIZE = 256;
+   private static final int KEY_BUFFER_MASK = KEY_BUFFER_SIZE - 1;
+   private static final int KEY_CODES = 1 << 16;
+
+   private final char[] keysTyped      = new char[KEY_BUFFER_SIZE];
+   private final long[] keysTypedNanos = new long[KEY_BUFFER_SIZE];
+   private final AtomicLong keysTypedHead = new AtomicLong();           // next slot to read
+   private final AtomicLong keysTypedTail = new AtomicLong();           // next slot to write
+   private long lastKeyTypedNanos = 0;
+
+   private final AtomicLongArray keysDown = new AtomicLongArray(KEY_CODES >>> 6);
+
+   private volatile Thread waiter;            // thread blocked in waitForInput(), woken by key events
+   private volatile Runnable listener;        // told about key events, for worlds that don't have a thread of their own
+
+   /**
+    * Has a key been typed?
+    * @return true if a typed key is waiting, false otherwise
+    */
+   public boolean hasNextKeyTyped() {
+      return keysTypedHead.get() != keysTypedTail.get();
+   }
+
+   /**
+    * Take the next typed key
+    * @return the next key typed
+    */
+   public char nextKeyTyped() {
+      long head = keysTypedHead.get();
+      if (head == keysTypedTail.get()) 
+         throw new NoSuchElementException("no key typed");
+      int slot = (int) (head & KEY_BUFFER_MASK);
+      char c = keysTyped[slot];
+      lastKeyTypedNanos = keysTypedNanos[slot];
+      keysTypedHead.lazySet(head + 1);
+      return c;
+   }
+
+   /**
+    * When did the key last returned by nextKeyTyped() arrive?
+    * @return the arrival time, comparable with System.nanoTime()
+    */
+   public long lastKeyTypedNanos() {
+      return lastKeyTypedNanos;
+   }
+
+   /**
+    * Is the keycode currently being pressed?
+    * @param keycode - the key code, as in KeyEvent
+    * @return true if the key is down, false otherwise
+    */
+   public boolean isKeyPressed(int keycode) {
+      if ((keycode < 0) || (keycode >= KEY_CODES)) 
+         return false;
+      return (keysDown.get(keycode >>> 6) & (1L << keycode)) != 0;
+   }
+
+   /**
+    * Sleep for up to the given time, returning early if a key is typed or
+    * pressed. Returns at once if a typed key is already waiting.
+    * @param nanos - the longest time to sleep, in nanoseconds
+    */
+   public void waitForInput(long nanos) {
+      waiter = Thread.currentThread();
+      if ((nanos > 0) && !hasNextKeyTyped()) 
+         LockSupport.parkNanos(nanos);
+      waiter = null;
+   }
+
+   /**
+    * Set something to run on the feeding thread after every key event
+    * @param listener - what to run, or null for nothing
+    */
+   public void setListener(Runnable listener) {
+      this.listener = listener;
+   }
+
+   /**
+    * A key was typed, called only by the feeding thread
+    * @param c - the character typed
+    * @return false if the buffer was full and the key was dropped
+    */
+   public boolean typed(char c) {
+      long tail = keysTypedTail.get();
+      if (tail - keysTypedHead.get() == KEY_BUFFER_SIZE)
+         return false;
+      int slot = (int) (tail & KEY_BUFFER_MASK);
+      keysTyped[slot] = c;
+      keysTypedNanos[slot] = System.nanoTime();
+      keysTypedTail.set(tail + 1);       // publishes the slot, a full fence so wake() can't miss a waiter that missed the key
+      wake();
+      return true;
+   }
+
+   /**
+    * A key went down, called only by the feeding thread
+    * @param keycode - the key code, as in KeyEvent
+    */
+   public void pressed(int keycode) {
+      if ((keycode < 0) || (keycode >= KEY_CODES)) 
+         return;
+      int word = keycode >>> 6;
+      keysDown.set(word, keysDown.get(word) | (1L << keycode));         // only the feeding thread writes
+      wake();
+   }
+
+   /**
+    * A key came up, called only by the feeding thread
+    * @param keycode - the key code, as in KeyEvent
+    */
+   public void released(int keycode) {
+      if ((keycode < 0) || (keycode >= KEY_CODES)) 
+         return;
+      int word = keycode >>> 6;
+      keysDown.set(word, keysDown.get(word) & ~(1L << keycode));
+   }
+
+   private void wake() {
+      Thread t = waiter;
+      if (t != null) 
+         LockSupport.unpark(t);
+      Runnable r = listener;
+      if (r != null)
+         r.run();
+   }
+}
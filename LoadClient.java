@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Load generator for GameServer. Simulates many players from one thread,
+ * each sending a random command every few hundred milliseconds and
+ * decoding and acknowledging every frame the server sends back. Without a server address
+ * it starts a GameServer in this JVM on a free localhost port.
+ */
+public class LoadClient {
+   private static final char[] COMMANDS = {'w', 'a', 's', 'd', 'q', '+', '-'};
+
+   /**
+    * One simulated player
+    */
+   private static class Player {
+      private final SocketChannel channel;
+      private final ByteBuffer in  = ByteBuffer.allocate(16384);
+      private final ByteBuffer out = ByteBuffer.allocate(256);
+      private final ViewDelta.Decoder decoder = new ViewDelta.Decoder();
+      private long nextCommandNanos;
+      private boolean connected = false;
+      private boolean ended = false;
+   
+      private Player(SocketChannel channel) {
+         this.channel = channel;
+      }
+   }
+
+   private long frames, frameBytes, commands, ends;    // counted since the last report
+
+   /**
+    * Simulate players. Arguments: [players] [seconds] [host:port]
+    */
+   public static void main(String[] args) throws IOException, InterruptedException {
+      int numPlayers = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+      int seconds    = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+   
+      InetSocketAddress address;
+      Thread thread = null;
+      if (args.length > 2) {
+         String[] parts = args[2].split(":");
+         address = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+      } else {
+         GameServer server = new GameServer(0, "40x40.txt", Runtime.getRuntime().availableProcessors());
+         thread = new Thread(server, "GameServer");
+         thread.setDaemon(true);
+         thread.start();
+         address = new InetSocketAddress("localhost", server.getPort());
+      }
+      new LoadClient().run(address, numPlayers, seconds);
+      if (thread != null)
+         thread.interrupt();
+   }
+
+   private void run(InetSocketAddress address, int numPlayers, int seconds) throws IOException {
+      Selector selector = Selector.open();
+      Random random = new Random(7);
+      List<Player> players = new ArrayList<>();
+      for (int i = 0; i < numPlayers; i++) {
+         SocketChannel channel = SocketChannel.open();
+         channel.configureBlocking(false);
+         channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+         Player player = new Player(channel);
+         player.nextCommandNanos = System.nanoTime() + random.nextInt(300) * 1000000L;
+         channel.register(selector, channel.connect(address) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, player);
+         player.connected = channel.isConnected();
+         players.add(player);
+      }
+   
+      long start = System.nanoTime();
+      long end = start + seconds * 1000000000L;
+      long nextReport = start + 1000000000L;
+      long totalFrames = 0, totalBytes = 0, totalCommands = 0, totalEnds = 0;
+      while (System.nanoTime() < end) {
+         selector.select(5);
+         Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+         while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Player player = (Player) key.attachment();
+            try {
+               if (key.isConnectable() && player.channel.finishConnect()) {
+                  player.connected = true;
+                  key.interestOps(SelectionKey.OP_READ);
+               } else if (key.isReadable()) {
+                  read(player, key);
+               }
+            } catch (IOException e) {
+               key.cancel();
+               player.channel.close();
+               player.ended = true;
+            }
+         }
+      
+         long now = System.nanoTime();
+         for (Player player : players) {
+            if (!player.connected || player.ended || (now < player.nextCommandNanos))
+               continue;
+            player.nextCommandNanos = now + (100 + random.nextInt(200)) * 1000000L;
+            player.out.putShort((short) 2);
+            player.out.put(GameServer.COMMAND);
+            player.out.put((byte) COMMANDS[random.nextInt(COMMANDS.length)]);
+            player.out.flip();
+            try {
+               player.channel.write(player.out);
+            } catch (IOException e) {
+               player.ended = true;
+            }
+            player.out.compact();
+            commands++;
+         }
+      
+         if (now >= nextReport) {
+            int connected = 0;
+            for (Player player : players)
+               if (player.connected && !player.ended)
+                  connected++;
+            System.out.printf("%5d playing, %6d frames/s, %7.1f KB/s, %5d commands/s, %d games over\n",
+                              connected, frames, frameBytes / 1024.0, commands, ends);
+            totalFrames += frames;
+            totalBytes += frameBytes;
+            totalCommands += commands;
+            totalEnds += ends;
+            frames = frameBytes = commands = ends = 0;
+            nextReport += 1000000000L;
+         }
+      }
+      System.out.printf("%d players for %d s: %d frames (%.0f bytes each), %d commands, %d games over\n",
+                        numPlayers, seconds, totalFrames, totalBytes / (double) Math.max(1, totalFrames),
+                        totalCommands, totalEnds);
+      for (Player player : players)
+         player.channel.close();
+   }
+
+   // Decode every complete frame that has arrived
+   private void read(Player player, SelectionKey key) throws IOException {
+      ByteBuffer in = player.in;
+      if (player.channel.read(in) < 0) {
+         key.cancel();
+         player.channel.close();
+         player.ended = true;
+         return;
+      }
+      in.flip();
+      boolean decoded = false;
+      while (in.remaining() >= 2) {
+         int length = in.getShort(in.position()) & 0xFFFF;
+         if (in.remaining() < 2 + length)
+            break;
+         in.getShort();
+         int next = in.position() + length;
+         byte type = in.get();
+         if (type == GameServer.VIEW) {
+            player.decoder.decode(in);
+            decoded = true;
+            frames++;
+            frameBytes += 2 + length;
+         } else if (type == GameServer.END) {
+            ends++;
+            player.ended = true;
+         }
+         in.position(next);
+      }
+      in.compact();
+   
+      // One acknowledgement for everything that arrived
+      if (decoded) {
+         player.out.putShort((short) 5);
+         player.out.put(GameServer.ACK);
+         player.out.putInt(player.decoder.getLastSeq());
+         player.out.flip();
+         player.channel.write(player.out);
+         player.out.compact();
+      }
+   }
+}
@@ -1,5 +1,3 @@
-import java.awt.Font;
-import java.awt.Color;
 import java.util.*;
 /**
  * The class that describes a monster in the Ultima game
@@ -8,54 +6,79 @@ import java.util.*;
  * @author Michele Van Dyne - added commenting
  * @author YOUR NAME HERE!! - added monster movement logic
  */
-public class Monster implements Runnable {
+public class Monster {
 
    public enum MonsterType {INVALID, SKELETON, ZOMBIE, BAT, GORK, TORNADO, NINJA};
    public enum MoveType {RANDOM, STILL, AGGRO, N};  
 
-   private MonsterType type;                       // type of monster
-   private MoveType    moveType;                   // how does this monster move right now
-   private int         x;                          // x location of monster
-   private int         y;                          // y location of monster
-   private int         sleepMs;                    // delay between times monster moves
-   private int         hp;                         // hit points - damage sustained
-   private int         attackDamage;               // damage monster causes
-   private int         aggroRadius;                // how far the enemy can sense the avatar
-   private World       world;                      // the world the monster moves about in
-   private Stats       timer;                      // elapsed time for showing damage;
+   private static final MoveType[] MOVE_TYPES = MoveType.values();
+
+   // Every image draw can use, so they can be loaded ahead of time
+   public static final String[] SPRITES = {"img-skeleton.png", "img-zombie.png", "img-bat.png", "img-gork.png",
+                                           "img-tornado.png", "img-blank.gif", "RF.png"};
+
+   // The four directions, and every order they can be tried in
+   private static final int[] NEIGHBOR_DX = {1, -1, 0, 0};
+   private static final int[] NEIGHBOR_DY = {0, 0, 1, -1};
+   private static final int[][] NEIGHBOR_ORDERS = new int[24][];
+   static {
+      int k = 0;
+      for (int a = 0; a < 4; a++)
+         for (int b = 0; b < 4; b++)
+            for (int c = 0; c < 4; c++)
+               if (a != b && a != c && b != c)
+                  NEIGHBOR_ORDERS[k++] = new int[] {a, b, c, 6 - a - b - c};
+   }
+
+   // A kept path is bent to follow the avatar at least this many times before it is worked out again
+   private static final int MIN_PATH_REPAIRS = 2;
+
+   private final MonsterStore store;               // the store holding this monster's state
+   private final int          handle;              // handle of this monster in the store
+
+   // The last path worked out to the avatar, only touched by whoever is planning this monster's move
+   private int[] path        = null;               // tiles (x * height + y) to step into, ending at the avatar
+   private int   pathNext    = 0;                  // path[pathNext] is the next step
+   private int   pathEnd     = 0;                  // the path ends before path[pathEnd]
+   private int   pathFrom    = -1;                 // tile the monster was on when path[pathNext] became next
+   private int   pathRepairs = 0;                  // steps added to follow the avatar since the path was worked out
    
    /**
-    * Construct a new monster
-    * @param world     - the world the monster moves about in
+    * Construct a view of a monster held in a store
+    * @param store     - the store holding the monster's state
+    * @param handle    - the handle returned when the monster was added to the store
+    */
+   public Monster(MonsterStore store, int handle) {
+      this.store  = store;
+      this.handle = handle;
+   }
+
+   /**
+    * Convert the string code from a level file into a type of monster
     * @param code      - the string code that distinguishes types of monsters
-    * @param x         - the x position of the monster
-    * @param y         - the y position of the monster
-    * @param hp        - hit points - damage sustained by the monster
-    * @param damage    - damage the monster causes
-    * @param sleepMs   - delay between time monster moves
+    * @return the type of monster
     */
-   public Monster(World world, String code, int x, int y, int hp, int attackDamage, int sleepMs, String moveCode, int aggroRadius) {
-      this.world        = world;
-      this.x            = x;
-      this.y            = y;
-      this.hp           = hp;
-      this.attackDamage = attackDamage;
-      this.sleepMs      = sleepMs;
-      this.aggroRadius  = aggroRadius;
-   
-      if      (code.toUpperCase().equals("SK")) type = MonsterType.SKELETON;
-      else if (code.toUpperCase().equals("ZB")) type = MonsterType.ZOMBIE;
-      else if (code.toUpperCase().equals("BT")) type = MonsterType.BAT;
-      else if (code.toUpperCase().equals("GK")) type = MonsterType.GORK;
-      else if (code.toUpperCase().equals("TO")) type = MonsterType.TORNADO;
-      else if (code.toUpperCase().equals("NJ")) type = MonsterType.NINJA;
-      else                                      type = MonsterType.INVALID;
-      
-      if      (moveCode.toUpperCase().equals("AGGRO"))  moveType = MoveType.AGGRO;
-      else if (moveCode.toUpperCase().equals("RANDOM")) moveType = MoveType.RANDOM;
-      else if (moveCode.toUpperCase().equals("STILL"))  moveType = MoveType.STILL;
-      else if (moveCode.toUpperCase().equals("N"))  moveType = MoveType.N;
-      else                                              moveType = MoveType.STILL;         
+   public static MonsterType parseType(String code) {
+      if      (code.toUpperCase().equals("SK")) return MonsterType.SKELETON;
+      else if (code.toUpperCase().equals("ZB")) return MonsterType.ZOMBIE;
+      else if (code.toUpperCase().equals("BT")) return MonsterType.BAT;
+      else if (code.toUpperCase().equals("GK")) return MonsterType.GORK;
+      else if (code.toUpperCase().equals("TO")) return MonsterType.TORNADO;
+      else if (code.toUpperCase().equals("NJ")) return MonsterType.NINJA;
+      else                                      return MonsterType.INVALID;
+   }
+
+   /**
+    * Convert the string code from a level file into a type of movement
+    * @param moveCode  - the string code that distinguishes types of movement
+    * @return the type of movement
+    */
+   public static MoveType parseMoveType(String moveCode) {
+      if      (moveCode.toUpperCase().equals("AGGRO"))  return MoveType.AGGRO;
+      else if (moveCode.toUpperCase().equals("RANDOM")) return MoveType.RANDOM;
+      else if (moveCode.toUpperCase().equals("STILL"))  return MoveType.STILL;
+      else if (moveCode.toUpperCase().equals("N"))      return MoveType.N;
+      else                                              return MoveType.STILL;         
    }
 
    /**
@@ -63,19 +86,22 @@ public class Monster implements Runnable {
     * @param points    - number of hit points to be subtracted from monster
     */
    public void incurDamage(int points) {
-      hp -= points;
-      if (timer == null) timer = new Stats();
-      timer.reset();
+      int slot = store.slotOf(handle);
+      if (slot >= 0)
+         store.incurDamage(slot, points);
    }
 
    /**
-    * Draw this monster at its current location
+    * Draw one of the monsters in a snapshot
+    * @param snap   - the snapshot
+    * @param i      - which monster in the snapshot
+    * @param camera - the part of the world in view
+    * @param nowMs  - the game time in milliseconds, for timing the health display
     */
-   public void draw() {
-   Tile ty = null;
-      double drawX = (x + 0.5 - World.offSetX) * Tile.SIZE;
-      double drawY = (y + 0.5 - World.offSetY) * Tile.SIZE;
-      switch (type) {
+   public static void draw(WorldSnapshot snap, int i, Camera camera, long nowMs) {
+      double drawX = camera.screenX(snap.getMonsterX(i));
+      double drawY = camera.screenY(snap.getMonsterY(i));
+      switch (snap.getMonsterType(i)) {
          case SKELETON: StdDraw.picture(drawX, drawY, "img-skeleton.png", Tile.SIZE, Tile.SIZE); 
             break;
          case ZOMBIE:   StdDraw.picture(drawX, drawY, "img-zombie.png",   Tile.SIZE, Tile.SIZE); 
@@ -91,32 +117,27 @@ public class Monster implements Runnable {
          //break;
          default:       StdDraw.picture(drawX, drawY, "img-blank.gif",    Tile.SIZE, Tile.SIZE);
          
-         if(world.getNumMonsters() == 3)
+         if(snap.getNumMonsters() == 3)
          {
            StdDraw.picture(drawX, drawY, "RF.png",  Tile.SIZE, Tile.SIZE);
          } 
       }
    
       //Show health for a small amount of time after taking damage
-      if ((timer != null) && (timer.elapsedTime() < World.DISPLAY_DAMAGE_SEC)) {
-         String healthString = "" + hp;
-         //Draw background box
-         StdDraw.setPenColor(new Color(0, 0, 0, 150)); //black with alpha
-         StdDraw.filledRectangle(drawX, drawY - Tile.SIZE/2 + 8, (int)(healthString.length()*4.5)+4, 8);                
-         //With font size 14, each digit is 4 pixels wide and 8 pixels tall                       
-         //Draw health text
-         StdDraw.setPenColor(StdDraw.RED);
-         StdDraw.setFont(new Font("SansSerif", Font.BOLD, 14));
-         StdDraw.text(drawX, drawY - Tile.SIZE/2 + 8, healthString);
+      long damagedMs = snap.getMonsterDamagedMs(i);
+      if ((damagedMs != 0) && (nowMs >= damagedMs) && (nowMs - damagedMs < World.DISPLAY_DAMAGE_SEC * 1000)) {
+         //Draw health over a background box
+         StdDraw.number(drawX, drawY - Tile.SIZE/2 + 8, snap.getMonsterHitPoints(i), StdDraw.RED);
       }      
    }
 
    /**
     * Get the number of hit points the monster has remaining
-    * @return the number of hit points
+    * @return the number of hit points, 0 once the monster has been reaped
     */
    public int getHitPoints() {
-      return hp;
+      int slot = store.slotOf(handle);
+      return (slot < 0) ? 0 : store.getHitPoints(slot);
    }
 
    /**
@@ -124,23 +145,34 @@ public class Monster implements Runnable {
     * @return amount of damage monster causes
     */
    public int getAttackDamage() {
-      return attackDamage;
+      int slot = store.slotOf(handle);
+      return (slot < 0) ? 0 : store.getAttackDamage(slot);
    }
 
    /**
     * Get the x position of the monster
-    * @return x position
+    * @return x position, -1 once the monster has been reaped
     */
    public int getX() {
-      return x;
+      int slot = store.slotOf(handle);
+      return (slot < 0) ? -1 : store.getX(slot);
    }
 
    /**
     * Get the y position of the monster
-    * @return y position
+    * @return y position, -1 once the monster has been reaped
     */
    public int getY() {
-      return y;
+      int slot = store.slotOf(handle);
+      return (slot < 0) ? -1 : store.getY(slot);
+   }
+
+   /**
+    * Get the handle of this monster in the world's monster store
+    * @return the handle
+    */
+   public int getHandle() {
+      return handle;
    }
 
    /**
@@ -149,61 +181,83 @@ public class Monster implements Runnable {
     * @param y the new y location
     */
    public void setLocation(int x, int y) {
-      this.x = x;
-      this.y = y;
+      int slot = store.slotOf(handle);
+      if (slot >= 0)
+         store.setLocation(slot, x, y);
    }
 
         
    /**
-    * Thread that runs on loop moving the monster 
-    * around as long as it is alive
+    * Phase one of a move: work out where this monster wants to go. This only reads
+    * the monster's own state, its own randomness and the tiles, so the World can
+    * have many monsters planning at once on different threads. Slots only move
+    * when the game thread reaps, which never happens while monsters are planning.
+    * @param avatarX - where the avatar was when this round of moves started
+    * @param avatarY - where the avatar was when this round of moves started
+    * @return the tile this monster wants to move into, or null to stay put
     */
-   public void run() {
-      while (hp > 0)
-      {         
-         Tile nextLocation = getNextLocation();  
-         if (nextLocation != null)          
-               world.monsterMove(nextLocation.getX(), nextLocation.getY(), this);                             
-         
-         // ***** Thread sleeps for moment until next move *****
-         try { Thread.sleep(sleepMs); }
-         catch (InterruptedException e) { System.out.println(e); }            
+   public Tile plan(int avatarX, int avatarY) {
+      int slot = store.slotOf(handle);
+      if ((slot < 0) || (store.getHitPoints(slot) <= 0))
+         return null;
+      followPath(store.getX(slot), store.getY(slot));
+      return getNextLocation(store.getX(slot), store.getY(slot), MOVE_TYPES[store.getMoveType(slot)],
+                             store.getAggroRadius(slot), store.getRandom(slot), avatarX, avatarY);
+   }
+
+   /**
+    * Phase two of a move: carry out a planned move, one monster at a time on the game thread
+    * @param target - the tile returned by plan, or null to stay put
+    * @return milliseconds until the monster should move again, or -1 if it is dead
+    */
+   public int resolve(Tile target) {
+      World world = store.getWorld();
+      int sleepMs;
+      synchronized (world) {
+         int slot = store.slotOf(handle);
+         if ((slot < 0) || (store.getHitPoints(slot) <= 0))
+            return -1;
+         sleepMs = store.getSleepMs(slot);
       }
+   
+      if (target != null)          
+         world.monsterMove(target.getX(), target.getY(), this);                             
+      return sleepMs;
    }
    
-   private Tile getNextLocation() {
-   double drawX = (x + 0.5 - World.offSetX) * Tile.SIZE;
-      double drawY = (y + 0.5 - World.offSetY) * Tile.SIZE;
+   private Tile getNextLocation(int x, int y, MoveType moveType, int aggroRadius, SplittableRandom random,
+                                int avatarX, int avatarY) {
+      World world = store.getWorld();
       // Depending on the MoveType of this monster, either getRandomMove or getBFSMove (See below)
       // Include code that switches RANDOM enemies into AGGRO when appropriate
       // Return the Tile object indicating the next location to move into 
          Tile ty = null;
          if(moveType == moveType.AGGRO)
          {
-           ty =  getBFSMove();
+           ty =  getBFSMove(x, y, random, avatarX, avatarY);
          }
          if(moveType == moveType.RANDOM)
          {
-           ty =  getRandomMove();
+           ty =  getRandomMove(x, y, random);
          }
          if(world.getNumMonsters() == 3)
          {
           if(moveType == moveType.N)
           {
-            ty =  getBFSMove();
+            ty =  getBFSMove(x, y, random, avatarX, avatarY);
           }
          } 
          if(ty != null && (Math.sqrt(Math.pow((x - ty.getX()), 2) + Math.pow((y - ty.getY()), 2))) >= aggroRadius && moveType == moveType.AGGRO)
          {
            moveType = moveType.AGGRO;
-           ty = getBFSMove();
+           ty = getBFSMove(x, y, random, avatarX, avatarY);
          }
         if(world.getNumMonsters() == 3)
         { 
          if(ty != null && (Math.sqrt(Math.pow((x - ty.getX()), 2) + Math.pow((y - ty.getY()), 2))) >= aggroRadius && moveType == moveType.N)
          {
            moveType = moveType.N;
-           ty = getBFSMove();
+           ty = getBFSMove(x, y, random, avatarX, avatarY);
          }
         } 
        
@@ -211,49 +265,48 @@ public class Monster implements Runnable {
          return ty;         
    }
    
-   private Tile getRandomMove() {
-      Tile[][] tiles = world.getTileMatrx();
+   private Tile getRandomMove(int x, int y, SplittableRandom random) {
+      TileMap tiles = store.getWorld().getTileMap();
       Tile[] chosenMoves = new Tile[4];
          
       // ***** <YOUR CODE GOES HERE> *****
       // Return a Tile object indicating the next location for this monster who moves randomly
-       double a = Math.random() * 4;
-       int m = (int)a;
+       int m = random.nextInt(4);
          switch((int)m)
          {
            case 1:
            if(y-1 >= 0)
            {
-             if(tiles[x][y-1].isPassable())
+             if(tiles.isPassable(x, y-1))
              {
-               chosenMoves[m] = tiles[x][y-1];
+               chosenMoves[m] = tiles.tileAt(x, y-1);
              }
            }
            break;
            case 2:
-           if(y+1 < tiles.length)
+           if(y+1 < tiles.getHeight())
            {
-             if(tiles[x][y+1].isPassable())
+             if(tiles.isPassable(x, y+1))
              {
-               chosenMoves[m] = tiles[x][y+1];
+               chosenMoves[m] = tiles.tileAt(x, y+1);
              }
            }
            break;
            case 3:
            if(x-1 >= 0)
            {
-             if(tiles[x-1][y].isPassable())
+             if(tiles.isPassable(x-1, y))
              {
-               chosenMoves[m] = tiles[x-1][y];
+               chosenMoves[m] = tiles.tileAt(x-1, y);
              }
            }
            break;
            case 4:
-           if(x+1 < tiles.length)
+           if(x+1 < tiles.getWidth())
            {
-             if(tiles[x+1][y].isPassable())
+             if(tiles.isPassable(x+1, y))
              {
-               chosenMoves[m] = tiles[x+1][y];
+               chosenMoves[m] = tiles.tileAt(x+1, y);
              }
            }
            break;
@@ -262,10 +315,88 @@ public class Monster implements Runnable {
       return chosenMoves[m];
    }
    
-   private Tile getBFSMove() {
-    Tile[][] tiles = world.getTileMatrx();
-      Tile avatar = world.getAvatarTile();
-      Tile monster = tiles[x][y];
+   private Tile getBFSMove(int x, int y, SplittableRandom random, int avatarX, int avatarY) {
+      TileMap tiles = store.getWorld().getTileMap();
+      int height = tiles.getHeight();
+   
+      // On another island there is nothing to search for, stay put
+      PathGraph paths = store.getWorld().getPathGraph();
+      if ((paths != null && !paths.isReachable(x, y, avatarX, avatarY)) || (x == avatarX && y == avatarY)) {
+         path = null;
+         return null;
+      }
+   
+      // Keep to the last path while it still leads to the avatar
+      int here = x * height + y;
+      if (path != null && pathFrom == here && leadsTo(avatarX * height + avatarY, height)) {
+         store.countPathLookup(true);
+         return tiles.tileAt(path[pathNext] / height, path[pathNext] % height);
+      }
+      store.countPathLookup(false);
+   
+      // Further than a cluster away, search the cluster graph rather than flood the map
+      if (paths != null && Math.abs(avatarX - x) + Math.abs(avatarY - y) > PathGraph.CLUSTER_SIZE)
+         path = paths.findPath(x, y, avatarX, avatarY);
+      else
+         path = getBFSPath(x, y, random, avatarX, avatarY);
+      if (path == null)
+         return null;
+      pathNext    = 0;
+      pathEnd     = path.length;
+      pathFrom    = here;
+      pathRepairs = 0;
+      return tiles.tileAt(path[0] / height, path[0] % height);
+   }
+
+   // Catch the kept path up with where the monster is now. Normally it took the
+   // step it was given. If it is still where it was, something was in the way,
+   // unless that something was the avatar at the end of the path being attacked.
+   private void followPath(int x, int y) {
+      if (path == null)
+         return;
+      int here = x * store.getWorld().getHeight() + y;
+      if (pathNext < pathEnd && path[pathNext] == here) {
+         pathFrom = here;
+         pathNext++;
+      } else if (here != pathFrom || pathNext != pathEnd - 1) {
+         path = null;
+      }
+   }
+
+   // Whether the rest of the kept path leads to the avatar's tile, repairing it
+   // if the avatar has only stepped back along it or one step off its end
+   private boolean leadsTo(int goal, int height) {
+      if (pathNext >= pathEnd)
+         return false;
+      int end = path[pathEnd - 1];
+      if (end == goal)
+         return true;
+      for (int k = pathEnd - 2; k >= pathNext; k--) {
+         if (path[k] == goal) {
+            pathEnd = k + 1;
+            return true;
+         }
+      }
+      if (Math.abs(end / height - goal / height) + Math.abs(end % height - goal % height) != 1)
+         return false;
+   
+      // Following the avatar's every step bends the path, so only do it so often
+      // before working it out afresh
+      if (pathRepairs >= Math.max(MIN_PATH_REPAIRS, (pathEnd - pathNext) / 4))
+         return false;
+      if (pathEnd == path.length)
+         path = Arrays.copyOf(path, pathEnd * 2);
+      path[pathEnd++] = goal;
+      pathRepairs++;
+      return true;
+   }
+
+   // Breadth first search for a path to the avatar, as tiles (x * height + y)
+   // from the first step to the avatar's tile, or null if it can't be reached
+   private int[] getBFSPath(int x, int y, SplittableRandom random, int avatarX, int avatarY) {
+    TileMap tiles = store.getWorld().getTileMap();
+      Tile avatar = tiles.tileAt(avatarX, avatarY);
+      Tile monster = tiles.tileAt(x, y);
       Tile chosenMove = null;
 
         Map<Tile, Tile> prev  = new HashMap<>();
@@ -276,7 +407,7 @@ public class Monster implements Runnable {
         outer:
         while (! placesToVisit.isEmpty()) {   
             Tile current = placesToVisit.poll();                               
-            for (Tile adj : getNeighbors(current)) {
+            for (Tile adj : getNeighbors(current, random)) {
                 if (!prev.containsKey(adj)) {
                     placesToVisit.offer(adj);
                     prev.put(adj, current);
@@ -286,35 +417,41 @@ public class Monster implements Runnable {
             }
         }
 
+        //avatar can't be reached, stay put rather than walk a broken path
+        if (!prev.containsKey(avatar) || avatar.equals(monster))
+            return null;
+
         //work backwards from goal to start to get path and number of steps
-        Tile move = avatar;
-        while ( prev.get(move) != monster ) {
-            move = prev.get(move);
-        }
-        return move;
+        int height = tiles.getHeight();
+        List<Integer> steps = new ArrayList<>();
+        for (Tile move = avatar; !move.equals(monster); move = prev.get(move))
+            steps.add(move.getX() * height + move.getY());
+        int[] found = new int[steps.size()];
+        for (int i = 0; i < found.length; i++)
+            found[i] = steps.get(found.length - 1 - i);
+        return found;
   }
   
   
-  public List<Tile> getNeighbors(Tile current) {
-      Tile[][] tiles = world.getTileMatrx();
+  /**
+   * Find the passable tiles next to a tile, in a random order so moving up isn't prioritized
+   * @param current - the tile to look around
+   * @param random  - randomness for the order
+   * @return the passable neighbors
+   */
+  public List<Tile> getNeighbors(Tile current, SplittableRandom random) {
+      TileMap tiles = store.getWorld().getTileMap();
       int X = current.getX();
       int Y = current.getY();
-      List<Tile> n = new ArrayList<>();
-      if (X < tiles.length-1 && tiles[X+1][Y].isPassable())
-         n.add(tiles[X+1][Y]);
-      if (X > 0 && tiles[X-1][Y].isPassable())
-         n.add(tiles[X-1][Y]);
-      if (Y < tiles.length-1 && tiles[X][Y+1].isPassable())
-         n.add(tiles[X][Y+1]);
-      if (Y > 0 && tiles[X][Y-1].isPassable())
-         n.add(tiles[X][Y-1]);
+      List<Tile> n = new ArrayList<>(4);
    
-        //randomize the list so option up isn't prioritized.
-      for (int i = 0; i < n.size(); i++){
-         int rand = (int)(Math.random()*n.size());
-         Tile temp = n.get(i);
-         n.set(i, n.get(rand));
-         n.set(rand, temp);                    
+      //pick one of the 24 orders of the four directions, rather than shuffling the list
+      int[] order = NEIGHBOR_ORDERS[random.nextInt(NEIGHBOR_ORDERS.length)];
+      for (int d : order) {
+         int nx = X + NEIGHBOR_DX[d];
+         int ny = Y + NEIGHBOR_DY[d];
+         if (tiles.inBounds(nx, ny) && tiles.isPassable(nx, ny))
+            n.add(tiles.tileAt(nx, ny));
       }
       return n;
    }
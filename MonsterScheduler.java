@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * Priority queue of monsters ordered by when they are next due to move,
+ * kept as a binary min-heap over parallel arrays so scheduling a move
+ * doesn't allocate. Monsters due at the same time come out in handle order,
+ * so the order never depends on the order they were scheduled in.
+ */
+public class MonsterScheduler {
+   private long[]    due      = new long[16];      // when each entry is due, game time in nanoseconds
+   private Monster[] monsters = new Monster[16];   // the monster each entry belongs to
+   private int       size     = 0;
+
+   /**
+    * Schedule a monster to move
+    * @param when    - when the monster is due to move
+    * @param monster - the monster
+    */
+   public void schedule(long when, Monster monster) {
+      if (size == due.length) {
+         due      = Arrays.copyOf(due, size * 2);
+         monsters = Arrays.copyOf(monsters, size * 2);
+      }
+      // Sift up from the new leaf
+      int i = size++;
+      while (i > 0) {
+         int parent = (i - 1) >>> 1;
+         if (!before(when, monster, due[parent], monsters[parent]))
+            break;
+         due[i]      = due[parent];
+         monsters[i] = monsters[parent];
+         i = parent;
+      }
+      due[i]      = when;
+      monsters[i] = monster;
+   }
+
+   /**
+    * Number of monsters scheduled
+    * @return the number of entries in the queue
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Get an entry, in no particular order, for looking at everything scheduled
+    * @param i - which entry, from 0 to size() - 1
+    * @return the monster of the entry
+    */
+   public Monster monsterAt(int i) {
+      return monsters[i];
+   }
+
+   /**
+    * Get when an entry is due, in no particular order
+    * @param i - which entry, from 0 to size() - 1
+    * @return when the monster of the entry is due
+    */
+   public long dueAt(int i) {
+      return due[i];
+   }
+
+   /**
+    * Remove everything from the queue
+    */
+   public void clear() {
+      Arrays.fill(monsters, 0, size, null);
+      size = 0;
+   }
+
+   /**
+    * Is anything scheduled
+    * @return true if empty, false otherwise
+    */
+   public boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * When is the earliest monster due
+    * @return the due time, or Long.MAX_VALUE if nothing is scheduled
+    */
+   public long peekDue() {
+      return (size == 0) ? Long.MAX_VALUE : due[0];
+   }
+
+   // Does entry a come out of the queue before entry b
+   private static boolean before(long dueA, Monster a, long dueB, Monster b) {
+      return (dueA < dueB) || ((dueA == dueB) && (a.getHandle() < b.getHandle()));
+   }
+
+   /**
+    * Remove the earliest monster from the queue
+    * @return the monster
+    */
+   public Monster poll() {
+      Monster result = monsters[0];
+      size--;
+      long     lastDue     = due[size];
+      Monster  lastMonster = monsters[size];
+      monsters[size] = null;
+   
+      // Sift the last leaf down from the root
+      int i = 0;
+      while (true) {
+         int child = 2 * i + 1;
+         if (child >= size)
+            break;
+         if ((child + 1 < size) && before(due[child + 1], monsters[child + 1], due[child], monsters[child]))
+            child++;
+         if (!before(due[child], monsters[child], lastDue, lastMonster))
+            break;
+         due[i]      = due[child];
+         monsters[i] = monsters[child];
+         i = child;
+      }
+      if (size > 0) {
+         due[i]      = lastDue;
+         monsters[i] = lastMonster;
+      }
+      return result;
+   }
+}
@@ -0,0 +1,410 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Holds the monsters of a World as parallel primitive arrays, one entry per
+ * monster, packed into [0, size()). Monster objects are thin views that only
+ * remember a handle into the store. Each monster gets a stable integer handle
+ * that stays valid until the monster is reaped, a generation count in the
+ * handle makes handles of reaped monsters go stale instead of pointing at
+ * whatever reused the slot.
+ *
+ * Dead monsters stay in the store, though nothing finds them at their
+ * location, until reap() is called once per tick, which compacts the arrays
+ * by swapping the last monster into each hole. Once the store knows the size
+ * of the world, a SpatialGrid of handles is kept up to date as monsters
+ * move, for finding the monsters in an area. The store is not synchronized,
+ * all access is guarded by the World lock, apart from the path cache
+ * counters, which monsters bump while planning on many threads.
+ */
+public class MonsterStore {
+   public static final int NO_HANDLE = -1;
+
+   private static final int INDEX_BITS = 20;                      // up to about a million monsters
+   private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+   private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+   private final World world;                     // the world the monsters move about in
+   private final SplittableRandom seeds;          // each monster's randomness is split off this
+
+   // Per-monster components, indexed by dense slot
+   private int[]  x            = new int[16];     // x location
+   private int[]  y            = new int[16];     // y location
+   private int[]  hp           = new int[16];     // hit points
+   private int[]  attackDamage = new int[16];     // damage caused to the avatar
+   private int[]  sleepMs      = new int[16];     // delay between moves
+   private int[]  aggroRadius  = new int[16];     // how far the monster can sense the avatar
+   private byte[] type         = new byte[16];    // MonsterType ordinal
+   private byte[] moveType     = new byte[16];    // MoveType ordinal
+   private long[] damagedMs    = new long[16];    // game time in ms of the last damage taken, 0 if never
+   private SplittableRandom[] random = new SplittableRandom[16];   // the monster's own randomness
+   private boolean[] dormant   = new boolean[16]; // too far from the avatar to be scheduled
+   private int[]  slotIndex    = new int[16];     // handle index owning each slot
+
+   // Handle bookkeeping, indexed by handle index
+   private int[] indexSlot   = new int[16];       // dense slot of each handle index, -1 if free
+   private int[] generation  = new int[16];       // current generation of each handle index
+   private int[] freeIndices = new int[16];       // handle indices ready for reuse
+   private int numFree       = 0;
+   private int numIndices    = 0;                 // handle indices handed out so far
+
+   private int size           = 0;                // monsters in the arrays
+   private volatile int count = 0;                // size as of the last add or reap, readable without the lock
+   private volatile int alive = 0;                // monsters with hit points left
+
+   private SpatialGrid grid = null;               // where the monsters are, once the world size is known
+
+   private final LongAdder pathHits   = new LongAdder();   // moves that kept to a monster's last path
+   private final LongAdder pathMisses = new LongAdder();   // moves that had to work out a new path
+
+   /**
+    * Create an empty store
+    * @param world - the world the monsters move about in
+    * @param seed  - seed the monsters' randomness is derived from, in the order they are added
+    */
+   public MonsterStore(World world, long seed) {
+      this.world = world;
+      this.seeds = new SplittableRandom(seed);
+   }
+
+   /**
+    * Accessor for the world the monsters move about in
+    */
+   public World getWorld() {
+      return world;
+   }
+
+   /**
+    * Start keeping a spatial index of the monsters
+    * @param width  - width of the world in tiles
+    * @param height - height of the world in tiles
+    */
+   public void setBounds(int width, int height) {
+      grid = new SpatialGrid(width, height);
+      for (int slot = 0; slot < size; slot++)
+         grid.add(handleAt(slot), x[slot], y[slot]);
+   }
+
+   /**
+    * Add a monster to the store
+    * @return the handle for the monster
+    */
+   public int add(Monster.MonsterType type, int x, int y, int hp, int attackDamage, int sleepMs,
+                  Monster.MoveType moveType, int aggroRadius) {
+      int index;
+      if (numFree > 0) {
+         index = freeIndices[--numFree];
+      } else {
+         if (numIndices > INDEX_MASK)
+            throw new IllegalStateException("too many monsters");
+         index = numIndices++;
+         if (index == indexSlot.length) {
+            indexSlot  = Arrays.copyOf(indexSlot, index * 2);
+            generation = Arrays.copyOf(generation, index * 2);
+         }
+      }
+      if (size == this.x.length)
+         grow(size * 2);
+   
+      int slot = size++;
+      this.x[slot]            = x;
+      this.y[slot]            = y;
+      this.hp[slot]           = hp;
+      this.attackDamage[slot] = attackDamage;
+      this.sleepMs[slot]      = sleepMs;
+      this.aggroRadius[slot]  = aggroRadius;
+      this.type[slot]         = (byte) type.ordinal();
+      this.moveType[slot]     = (byte) moveType.ordinal();
+      this.damagedMs[slot]    = 0;
+      this.random[slot]       = seeds.split();
+      this.dormant[slot]      = false;
+      slotIndex[slot]  = index;
+      indexSlot[index] = slot;
+      count = size;
+      if (hp > 0)
+         alive++;
+      int handle = (generation[index] << INDEX_BITS) | index;
+      if (grid != null)
+         grid.add(handle, x, y);
+      return handle;
+   }
+
+   /**
+    * Count a monster looking for its way to the avatar
+    * @param hit - true if its last path still led there, false if a new one was worked out
+    */
+   public void countPathLookup(boolean hit) {
+      if (hit)
+         pathHits.increment();
+      else
+         pathMisses.increment();
+   }
+
+   /**
+    * Number of moves that kept to a monster's last path
+    */
+   public long getPathHits() {
+      return pathHits.sum();
+   }
+
+   /**
+    * Number of moves that had to work out a new path
+    */
+   public long getPathMisses() {
+      return pathMisses.sum();
+   }
+
+   /**
+    * Remove every monster, all handles go stale
+    */
+   public void clear() {
+      for (int slot = 0; slot < size; slot++)
+         hp[slot] = 0;
+      reap();
+      alive = 0;
+   }
+
+   /**
+    * Set when the monster in a slot last took damage, when restoring a saved game
+    */
+   public void setDamagedMs(int slot, long damagedMs) {
+      this.damagedMs[slot] = damagedMs;
+   }
+
+   private void grow(int capacity) {
+      x            = Arrays.copyOf(x, capacity);
+      y            = Arrays.copyOf(y, capacity);
+      hp           = Arrays.copyOf(hp, capacity);
+      attackDamage = Arrays.copyOf(attackDamage, capacity);
+      sleepMs      = Arrays.copyOf(sleepMs, capacity);
+      aggroRadius  = Arrays.copyOf(aggroRadius, capacity);
+      type         = Arrays.copyOf(type, capacity);
+      moveType     = Arrays.copyOf(moveType, capacity);
+      damagedMs    = Arrays.copyOf(damagedMs, capacity);
+      random       = Arrays.copyOf(random, capacity);
+      dormant      = Arrays.copyOf(dormant, capacity);
+      slotIndex    = Arrays.copyOf(slotIndex, capacity);
+   }
+
+   /**
+    * Find the slot of a handle
+    * @param handle - the handle returned by add
+    * @return the slot, or -1 if the handle is stale
+    */
+   public int slotOf(int handle) {
+      if (handle < 0)
+         return -1;
+      int index = handle & INDEX_MASK;
+      if ((index >= numIndices) || (generation[index] != (handle >>> INDEX_BITS)))
+         return -1;
+      return indexSlot[index];
+   }
+
+   /**
+    * Find the handle of the monster in a slot
+    * @param slot - the slot
+    * @return the handle
+    */
+   public int handleAt(int slot) {
+      int index = slotIndex[slot];
+      return (generation[index] << INDEX_BITS) | index;
+   }
+
+   /**
+    * Number of monsters in the store, including ones that died since the last reap
+    * @return the number of monsters
+    */
+   public int size() {
+      return count;
+   }
+
+   /**
+    * Number of monsters with hit points left, dead ones stop counting as soon as they die
+    * @return the number of living monsters
+    */
+   public int getNumAlive() {
+      return alive;
+   }
+
+   public int getX(int slot) {
+      return x[slot];
+   }
+
+   public int getY(int slot) {
+      return y[slot];
+   }
+
+   public int getHitPoints(int slot) {
+      return hp[slot];
+   }
+
+   public int getAttackDamage(int slot) {
+      return attackDamage[slot];
+   }
+
+   public int getSleepMs(int slot) {
+      return sleepMs[slot];
+   }
+
+   public int getAggroRadius(int slot) {
+      return aggroRadius[slot];
+   }
+
+   public int getType(int slot) {
+      return type[slot];
+   }
+
+   public int getMoveType(int slot) {
+      return moveType[slot];
+   }
+
+   public long getDamagedMs(int slot) {
+      return damagedMs[slot];
+   }
+
+   /**
+    * Get the randomness of the monster in a slot. Each slot's generator is
+    * only used by the one task planning that monster's move, on whichever
+    * pool thread runs it, and never while moves are being resolved
+    */
+   public SplittableRandom getRandom(int slot) {
+      return random[slot];
+   }
+
+   /**
+    * Set the new location of the monster in a slot
+    */
+   public void setLocation(int slot, int x, int y) {
+      if (grid != null)
+         grid.move(handleAt(slot), this.x[slot], this.y[slot], x, y);
+      this.x[slot] = x;
+      this.y[slot] = y;
+   }
+
+   /**
+    * Is the monster in a slot dormant, too far from the avatar to be scheduled
+    */
+   public boolean isDormant(int slot) {
+      return dormant[slot];
+   }
+
+   public void setDormant(int slot, boolean dormant) {
+      this.dormant[slot] = dormant;
+   }
+
+   /**
+    * Visit the monsters standing in a rectangle of tiles, using the spatial index
+    * @param minX    - left edge of the rectangle, inclusive
+    * @param minY    - bottom edge of the rectangle, inclusive
+    * @param maxX    - right edge of the rectangle, inclusive
+    * @param maxY    - top edge of the rectangle, inclusive
+    * @param visitor - given the slot of each monster in the rectangle
+    */
+   public void forEachIn(int minX, int minY, int maxX, int maxY, IntConsumer visitor) {
+      grid.query(minX, minY, maxX, maxY, handle -> {
+         int slot = slotOf(handle);
+         if ((x[slot] >= minX) && (x[slot] <= maxX) && (y[slot] >= minY) && (y[slot] <= maxY))
+            visitor.accept(slot);
+      });
+   }
+
+   /**
+    * Subtract hit points from the monster in a slot and start its damage display
+    */
+   public void incurDamage(int slot, int points) {
+      if ((hp[slot] > 0) && (hp[slot] <= points))
+         alive--;
+      hp[slot] -= points;
+      damagedMs[slot] = Math.max(1, world.getClock().now() / 1000000L);
+   }
+
+   /**
+    * Find a monster standing at (x, y)
+    * @param x      - the x location
+    * @param y      - the y location
+    * @param ignore - a slot to skip, or -1
+    * @return the slot of the first living monster there, or -1 if none
+    */
+   public int findAt(int x, int y, int ignore) {
+      if (grid != null) {
+         int found = -1;
+         int[] handles = grid.cellAt(x, y);
+         for (int i = grid.count(x, y) - 1; i >= 0; i--) {
+            int slot = slotOf(handles[i]);
+            if ((this.x[slot] == x) && (this.y[slot] == y) && (slot != ignore) && (hp[slot] > 0) 
+                && ((found < 0) || (slot < found)))
+               found = slot;
+         }
+         return found;
+      }
+      final int[] xs = this.x;
+      final int[] ys = this.y;
+      for (int i = 0; i < size; i++) {
+         if ((xs[i] == x) && (ys[i] == y) && (i != ignore) && (hp[i] > 0))
+            return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Copy the state needed to draw the monsters, each array must hold size() entries
+    */
+   public void copyState(int[] handle, int[] x, int[] y, int[] hp, byte[] type, long[] damagedMs) {
+      for (int slot = 0; slot < size; slot++)
+         handle[slot] = handleAt(slot);
+      System.arraycopy(this.x, 0, x, 0, size);
+      System.arraycopy(this.y, 0, y, 0, size);
+      System.arraycopy(this.hp, 0, hp, 0, size);
+      System.arraycopy(this.type, 0, type, 0, size);
+      System.arraycopy(this.damagedMs, 0, damagedMs, 0, size);
+   }
+
+   /**
+    * Remove all dead monsters, swapping the last monster into each hole.
+    * Handles of the removed monsters go stale.
+    * @return the number of monsters removed
+    */
+   public int reap() {
+      int removed = 0;
+      int slot = 0;
+      while (slot < size) {
+         if (hp[slot] > 0) {
+            slot++;
+            continue;
+         }
+      
+         int index = slotIndex[slot];
+         if (grid != null)
+            grid.remove(handleAt(slot), x[slot], y[slot]);
+         indexSlot[index]  = -1;
+         generation[index] = (generation[index] + 1) & GENERATION_MASK;
+         if (numFree == freeIndices.length)
+            freeIndices = Arrays.copyOf(freeIndices, numFree * 2);
+         freeIndices[numFree++] = index;
+      
+         // Move the last monster into the hole, and look at this slot again
+         size--;
+         if (slot != size) {
+            x[slot]            = x[size];
+            y[slot]            = y[size];
+            hp[slot]           = hp[size];
+            attackDamage[slot] = attackDamage[size];
+            sleepMs[slot]      = sleepMs[size];
+            aggroRadius[slot]  = aggroRadius[size];
+            type[slot]         = type[size];
+            moveType[slot]     = moveType[size];
+            damagedMs[slot]    = damagedMs[size];
+            random[slot]       = random[size];
+            dormant[slot]      = dormant[size];
+            slotIndex[slot]    = slotIndex[size];
+            indexSlot[slotIndex[slot]] = slot;
+         }
+         random[size] = null;
+         removed++;
+      }
+      count = size;
+      return removed;
+   }
+}
@@ -0,0 +1,636 @@
+import java.util.*;
+
+/**
+ * Hierarchical pathfinding (HPA*) over the passable tiles of a World. The
+ * map is cut into CLUSTER_SIZE x CLUSTER_SIZE clusters. Where neighbouring
+ * clusters share a run of passable border tiles there is an entrance: a node
+ * on each side, one step apart. The walking distances between the nodes of
+ * each cluster are worked out once, when the level loads. A long path is
+ * then searched for on this small graph of nodes, and only its first segment,
+ * inside the start cluster, is turned into an actual step.
+ *
+ * Every passable tile is also labelled with the island, or region, it is
+ * on, so that a goal on another island is turned down without searching.
+ *
+ * Which tiles are passable never changes while playing, so the graph is
+ * built once and afterwards only read, by any number of threads at once.
+ */
+public class PathGraph {
+   public static final int CLUSTER_SIZE = 16;
+   private static final int MAX_ENTRANCE_RUN = 6;        // longer runs of border get an entrance at each end
+   private static final int[] DX = {1, -1, 0, 0};
+   private static final int[] DY = {0, 0, 1, -1};
+
+   private final int width, height;                      // size of the map in tiles
+   private final boolean[] passable;                     // tile (x * height + y)
+   private final int clustersX, clustersY;               // size of the map in clusters
+   private final int[] region;                           // island of each tile (x * height + y), -1 if not passable
+   private int numRegions = 0;
+
+   private int numNodes = 0;
+   private int[] nodeX = new int[64];
+   private int[] nodeY = new int[64];
+   private int[] nodeCluster;                            // cluster (cx * clustersY + cy) of each node
+   private int[] clusterFirst;                           // cluster c has nodes clusterNodes[clusterFirst[c] .. clusterFirst[c + 1])
+   private int[] clusterNodes;
+   private int[] edgeFirst;                              // node n has edges edgeFirst[n] .. edgeFirst[n + 1]
+   private int[] edgeTo;
+   private int[] edgeCost;
+
+   // One per thread, shared by every graph so a graph that is dropped isn't kept
+   // reachable by the threads that searched it
+   private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<>();
+
+   /**
+    * Working space for one search, one per thread
+    */
+   private static class Scratch {
+      private final int[] g;                                     // best known distance to each node
+      private final int[] h;                                     // estimated distance from each node to the goal
+      private final int[] parent;
+      private final int[] seen;                                  // search that last touched each node
+      private final int[] pos;                                   // place of each node in the heap, -1 once taken off
+      private final int[] heap;
+      private int heapSize = 0;
+      private int search = 0;
+      private final int[] startDist = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+      private final int[] goalDist  = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+      private final int[] boxDist   = new int[16 * CLUSTER_SIZE * CLUSTER_SIZE];
+      private final int[] queue     = new int[16 * CLUSTER_SIZE * CLUSTER_SIZE];
+      private int boxX, boxY, boxW, boxH;                        // the box boxDist covers
+   
+      // Room for searching graphs of up to nodes nodes, counting the start and goal
+      Scratch(int nodes) {
+         g      = new int[nodes];
+         h      = new int[nodes];
+         parent = new int[nodes];
+         seen   = new int[nodes];
+         pos    = new int[nodes];
+         heap   = new int[nodes];
+      }
+   
+      // Lowest estimated total first; on a tie the node nearer the goal, which
+      // keeps the search from widening across the many equally good routes
+      private boolean before(int a, int b) {
+         int fa = g[a] + h[a], fb = g[b] + h[b];
+         return (fa < fb) || ((fa == fb) && (h[a] < h[b]));
+      }
+   
+      // Reach a node at distance d from the start, putting it in the heap or moving it up
+      private void reach(int n, int d, int from, int estimate) {
+         int i;
+         if (seen[n] != search) {
+            seen[n] = search;
+            h[n] = estimate;
+            i = heapSize++;
+         } else if ((pos[n] >= 0) && (d < g[n])) {
+            i = pos[n];
+         } else {
+            return;
+         }
+         g[n] = d;
+         parent[n] = from;
+         while (i > 0) {
+            int up = (i - 1) >>> 1;
+            if (!before(n, heap[up]))
+               break;
+            heap[i] = heap[up];
+            pos[heap[i]] = i;
+            i = up;
+         }
+         heap[i] = n;
+         pos[n] = i;
+      }
+   
+      private int pop() {
+         int top = heap[0];
+         pos[top] = -1;
+         int last = heap[--heapSize];
+         if (heapSize == 0)
+            return top;
+         int i = 0;
+         while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+               break;
+            if ((child + 1 < heapSize) && before(heap[child + 1], heap[child]))
+               child++;
+            if (!before(heap[child], last))
+               break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+         }
+         heap[i] = last;
+         pos[last] = i;
+         return top;
+      }
+   }
+
+   /**
+    * Build the graph for a map
+    * @param tiles - the map
+    */
+   public PathGraph(TileMap tiles) {
+      width  = tiles.getWidth();
+      height = tiles.getHeight();
+      passable = new boolean[width * height];
+      for (int x = 0; x < width; x++)
+         for (int y = 0; y < height; y++)
+            passable[x * height + y] = tiles.isPassable(x, y);
+      region = labelRegions();
+      clustersX = (width + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+      clustersY = (height + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+   
+      // Entrances across each vertical border, then each horizontal one
+      Map<Integer, Integer> tileNode = new HashMap<>();
+      IntList from = new IntList(), to = new IntList(), cost = new IntList();
+      for (int cx = 0; cx + 1 < clustersX; cx++) {
+         int x = (cx + 1) * CLUSTER_SIZE - 1;
+         for (int cy = 0; cy < clustersY; cy++)
+            addEntrances(tileNode, from, to, cost, x, cy * CLUSTER_SIZE, 1, 0, 0, 1, 
+                         Math.min(CLUSTER_SIZE, height - cy * CLUSTER_SIZE));
+      }
+      for (int cy = 0; cy + 1 < clustersY; cy++) {
+         int y = (cy + 1) * CLUSTER_SIZE - 1;
+         for (int cx = 0; cx < clustersX; cx++)
+            addEntrances(tileNode, from, to, cost, cx * CLUSTER_SIZE, y, 0, 1, 1, 0,
+                         Math.min(CLUSTER_SIZE, width - cx * CLUSTER_SIZE));
+      }
+   
+      // Group the nodes by cluster
+      int numClusters = clustersX * clustersY;
+      nodeCluster = new int[numNodes];
+      clusterFirst = new int[numClusters + 1];
+      for (int n = 0; n < numNodes; n++) {
+         nodeCluster[n] = clusterOf(nodeX[n], nodeY[n]);
+         clusterFirst[nodeCluster[n] + 1]++;
+      }
+      for (int c = 0; c < numClusters; c++)
+         clusterFirst[c + 1] += clusterFirst[c];
+      clusterNodes = new int[numNodes];
+      int[] fill = Arrays.copyOf(clusterFirst, numClusters);
+      for (int n = 0; n < numNodes; n++)
+         clusterNodes[fill[nodeCluster[n]]++] = n;
+   
+      // Walking distances between the nodes of each cluster, staying inside it
+      int[] dist  = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+      int[] queue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+      for (int c = 0; c < numClusters; c++) {
+         int x0 = (c / clustersY) * CLUSTER_SIZE;
+         int y0 = (c % clustersY) * CLUSTER_SIZE;
+         int w = Math.min(CLUSTER_SIZE, width - x0);
+         int h = Math.min(CLUSTER_SIZE, height - y0);
+         for (int i = clusterFirst[c]; i < clusterFirst[c + 1]; i++) {
+            int a = clusterNodes[i];
+            bfs(x0, y0, w, h, nodeX[a], nodeY[a], dist, queue);
+            for (int j = clusterFirst[c]; j < clusterFirst[c + 1]; j++) {
+               int b = clusterNodes[j];
+               int d = dist[(nodeX[b] - x0) * h + (nodeY[b] - y0)];
+               if ((a != b) && (d > 0)) {
+                  from.add(a);
+                  to.add(b);
+                  cost.add(d);
+               }
+            }
+         }
+      }
+   
+      // Edges by node
+      edgeFirst = new int[numNodes + 1];
+      for (int e = 0; e < from.size; e++)
+         edgeFirst[from.data[e] + 1]++;
+      for (int n = 0; n < numNodes; n++)
+         edgeFirst[n + 1] += edgeFirst[n];
+      edgeTo   = new int[from.size];
+      edgeCost = new int[from.size];
+      fill = Arrays.copyOf(edgeFirst, numNodes);
+      for (int e = 0; e < from.size; e++) {
+         int k = fill[from.data[e]]++;
+         edgeTo[k]   = to.data[e];
+         edgeCost[k] = cost.data[e];
+      }
+   }
+
+   // Flood each island of passable tiles in turn, giving it the next label
+   private int[] labelRegions() {
+      int[] label = new int[width * height];
+      Arrays.fill(label, -1);
+      int[] queue = new int[width * height];
+      for (int start = 0; start < label.length; start++) {
+         if (!passable[start] || (label[start] >= 0))
+            continue;
+         int head = 0, tail = 0;
+         label[start] = numRegions;
+         queue[tail++] = start;
+         while (head < tail) {
+            int cell = queue[head++];
+            int x = cell / height;
+            int y = cell % height;
+            for (int d = 0; d < 4; d++) {
+               int nx = x + DX[d];
+               int ny = y + DY[d];
+               if (isPassable(nx, ny) && (label[nx * height + ny] < 0)) {
+                  label[nx * height + ny] = numRegions;
+                  queue[tail++] = nx * height + ny;
+               }
+            }
+         }
+         numRegions++;
+      }
+      return label;
+   }
+
+   // Growable list of ints, for building the edges
+   private static class IntList {
+      private int[] data = new int[256];
+      private int size = 0;
+   
+      private void add(int value) {
+         if (size == data.length)
+            data = Arrays.copyOf(data, size * 2);
+         data[size++] = value;
+      }
+   }
+
+   // Find the runs of border where the tile on each side is passable and
+   // put entrances in them. The border starts at (x, y) on the near side, 
+   // (ox, oy) steps across it and (dx, dy) steps along it.
+   private void addEntrances(Map<Integer, Integer> tileNode, IntList from, IntList to, IntList cost,
+                             int x, int y, int ox, int oy, int dx, int dy, int length) {
+      int runStart = -1;
+      for (int i = 0; i <= length; i++) {
+         boolean open = (i < length) && isPassable(x + i * dx, y + i * dy) 
+                                     && isPassable(x + i * dx + ox, y + i * dy + oy);
+         if (open && (runStart < 0)) {
+            runStart = i;
+         } else if (!open && (runStart >= 0)) {
+            int runEnd = i - 1;
+            if (runEnd - runStart + 1 < MAX_ENTRANCE_RUN) {
+               addEntrance(tileNode, from, to, cost, x + ((runStart + runEnd) / 2) * dx, y + ((runStart + runEnd) / 2) * dy, ox, oy);
+            } else {
+               addEntrance(tileNode, from, to, cost, x + runStart * dx, y + runStart * dy, ox, oy);
+               addEntrance(tileNode, from, to, cost, x + runEnd * dx, y + runEnd * dy, ox, oy);
+            }
+            runStart = -1;
+         }
+      }
+   }
+
+   private void addEntrance(Map<Integer, Integer> tileNode, IntList from, IntList to, IntList cost,
+                            int x, int y, int ox, int oy) {
+      int a = nodeAt(tileNode, x, y);
+      int b = nodeAt(tileNode, x + ox, y + oy);
+      from.add(a);
+      to.add(b);
+      cost.add(1);
+      from.add(b);
+      to.add(a);
+      cost.add(1);
+   }
+
+   private int nodeAt(Map<Integer, Integer> tileNode, int x, int y) {
+      Integer node = tileNode.get(x * height + y);
+      if (node != null)
+         return node;
+      if (numNodes == nodeX.length) {
+         nodeX = Arrays.copyOf(nodeX, numNodes * 2);
+         nodeY = Arrays.copyOf(nodeY, numNodes * 2);
+      }
+      nodeX[numNodes] = x;
+      nodeY[numNodes] = y;
+      tileNode.put(x * height + y, numNodes);
+      return numNodes++;
+   }
+
+   private boolean isPassable(int x, int y) {
+      return (x >= 0) && (y >= 0) && (x < width) && (y < height) && passable[x * height + y];
+   }
+
+   // Estimated distance from a node to the goal. Going through entrances
+   // makes paths longer than the straight distance, more so the further
+   // they go, so it is stretched by a quarter. Otherwise the search widens
+   // across a band of equally likely nodes; the price is paths that may be
+   // up to a quarter longer than the shortest.
+   private int estimate(int n, int tx, int ty) {
+      return (Math.abs(nodeX[n] - tx) + Math.abs(nodeY[n] - ty)) * 5 / 4;
+   }
+
+   private int clusterOf(int x, int y) {
+      return (x / CLUSTER_SIZE) * clustersY + (y / CLUSTER_SIZE);
+   }
+
+   // Breadth first search inside a box of w x h tiles from (x0, y0), filling in
+   // the distance to each tile of the box as dist[(x - x0) * h + (y - y0)],
+   // counting the start as 1 so that 0 means not reachable
+   private void bfs(int x0, int y0, int w, int h, int sx, int sy, int[] dist, int[] queue) {
+      Arrays.fill(dist, 0, w * h, 0);
+      int head = 0, tail = 0;
+      int start = (sx - x0) * h + (sy - y0);
+      dist[start] = 1;
+      queue[tail++] = start;
+      while (head < tail) {
+         int cell = queue[head++];
+         int cx = cell / h;
+         int cy = cell % h;
+         for (int d = 0; d < 4; d++) {
+            int nx = cx + DX[d];
+            int ny = cy + DY[d];
+            if ((nx < 0) || (ny < 0) || (nx >= w) || (ny >= h))
+               continue;
+            int next = nx * h + ny;
+            if ((dist[next] == 0) && passable[(nx + x0) * height + (ny + y0)]) {
+               dist[next] = dist[cell] + 1;
+               queue[tail++] = next;
+            }
+         }
+      }
+   }
+
+   // The neighbour of (sx, sy) one step nearer to the tile a box search started from
+   private int stepDown(int x0, int y0, int w, int h, int sx, int sy, int[] dist) {
+      int here = dist[(sx - x0) * h + (sy - y0)];
+      if (here == 0)
+         return -1;
+      for (int d = 0; d < 4; d++) {
+         int nx = sx + DX[d];
+         int ny = sy + DY[d];
+         if ((nx >= x0) && (ny >= y0) && (nx < x0 + w) && (ny < y0 + h) && (dist[(nx - x0) * h + (ny - y0)] == here - 1))
+            return nx * height + ny;
+      }
+      return -1;
+   }
+
+   /**
+    * Work out the first step of a path between two tiles. Nearby goals are
+    * searched for directly, far ones on the cluster graph.
+    * @param sx - x location of the start
+    * @param sy - y location of the start
+    * @param tx - x location of the goal
+    * @param ty - y location of the goal
+    * @return the tile to step into as (x * height + y), or -1 if there is no path
+    */
+   public int firstStep(int sx, int sy, int tx, int ty) {
+      if (!isReachable(sx, sy, tx, ty) || ((sx == tx) && (sy == ty)))
+         return -1;
+      Scratch s = scratch();
+      if (searchNear(s, sx, sy, tx, ty))
+         return stepDown(s.boxX, s.boxY, s.boxW, s.boxH, sx, sy, s.boxDist);
+      if (!searchFar(s, sx, sy, tx, ty))
+         return -1;
+   
+      // Walk back to the first node, and the one after it
+      final int START = numNodes, GOAL = numNodes + 1;
+      int next = GOAL, first = s.parent[GOAL];
+      while (s.parent[first] != START) {
+         next = first;
+         first = s.parent[first];
+      }
+      int gx = nodeX[first], gy = nodeY[first];
+      if ((gx == sx) && (gy == sy)) {
+         // Standing on the first node, head for the one after it
+         gx = (next == GOAL) ? tx : nodeX[next];
+         gy = (next == GOAL) ? ty : nodeY[next];
+         if (Math.abs(gx - sx) + Math.abs(gy - sy) == 1)
+            return gx * height + gy;
+      }
+      clusterBox(s, sx, sy);
+      bfs(s.boxX, s.boxY, s.boxW, s.boxH, gx, gy, s.boxDist, s.queue);
+      return stepDown(s.boxX, s.boxY, s.boxW, s.boxH, sx, sy, s.boxDist);
+   }
+
+   /**
+    * Work out a whole path between two tiles, refining every segment of the
+    * route found on the cluster graph, for callers that keep the path
+    * @param sx - x location of the start
+    * @param sy - y location of the start
+    * @param tx - x location of the goal
+    * @param ty - y location of the goal
+    * @return the tiles to step into in turn as (x * height + y), ending with the goal, or null if there is no path
+    */
+   public int[] findPath(int sx, int sy, int tx, int ty) {
+      if (!isReachable(sx, sy, tx, ty) || ((sx == tx) && (sy == ty)))
+         return null;
+      Scratch s = scratch();
+      IntList steps = new IntList();
+      if (searchNear(s, sx, sy, tx, ty)) {
+         walkDown(s, sx * height + sy, steps);
+         return Arrays.copyOf(steps.data, steps.size);
+      }
+      if (!searchFar(s, sx, sy, tx, ty))
+         return null;
+   
+      // The nodes along the way, in order, then the goal
+      final int START = numNodes, GOAL = numNodes + 1;
+      IntList waypoints = new IntList();
+      waypoints.add(tx * height + ty);
+      for (int n = s.parent[GOAL]; n != START; n = s.parent[n])
+         waypoints.add(nodeX[n] * height + nodeY[n]);
+   
+      // Each leg either crosses an entrance, one step, or stays inside one cluster
+      int at = sx * height + sy;
+      for (int i = waypoints.size - 1; i >= 0; i--) {
+         int to = waypoints.data[i];
+         if (to == at)
+            continue;
+         if (Math.abs(to / height - at / height) + Math.abs(to % height - at % height) == 1) {
+            steps.add(to);
+         } else {
+            clusterBox(s, at / height, at % height);
+            bfs(s.boxX, s.boxY, s.boxW, s.boxH, to / height, to % height, s.boxDist, s.queue);
+            if (walkDown(s, at, steps) != to)
+               return null;
+         }
+         at = to;
+      }
+      return Arrays.copyOf(steps.data, steps.size);
+   }
+
+   // This thread's scratch, grown if it is too small for this graph
+   private Scratch scratch() {
+      Scratch s = SCRATCH.get();
+      if ((s == null) || (s.g.length < numNodes + 2)) {
+         s = new Scratch(numNodes + 2);
+         SCRATCH.set(s);
+      }
+      return s;
+   }
+
+   // Set the scratch box to the cluster a tile is in
+   private void clusterBox(Scratch s, int x, int y) {
+      s.boxX = (x / CLUSTER_SIZE) * CLUSTER_SIZE;
+      s.boxY = (y / CLUSTER_SIZE) * CLUSTER_SIZE;
+      s.boxW = Math.min(CLUSTER_SIZE, width - s.boxX);
+      s.boxH = Math.min(CLUSTER_SIZE, height - s.boxY);
+   }
+
+   // Walk down the box search's distances from a tile to where the search
+   // started, adding each step, and return the tile the walk ended on
+   private int walkDown(Scratch s, int from, IntList steps) {
+      int at = from;
+      while (s.boxDist[(at / height - s.boxX) * s.boxH + (at % height - s.boxY)] > 1) {
+         at = stepDown(s.boxX, s.boxY, s.boxW, s.boxH, at / height, at % height, s.boxDist);
+         steps.add(at);
+      }
+      return at;
+   }
+
+   // Close by: search the clusters of both ends and the ones around them.
+   // Returns true if the start was reached, with the distances to the goal
+   // left in the scratch box.
+   private boolean searchNear(Scratch s, int sx, int sy, int tx, int ty) {
+      int scx = sx / CLUSTER_SIZE, scy = sy / CLUSTER_SIZE;
+      int tcx = tx / CLUSTER_SIZE, tcy = ty / CLUSTER_SIZE;
+      if ((Math.abs(scx - tcx) > 1) || (Math.abs(scy - tcy) > 1))
+         return false;
+      s.boxX = Math.max(0, Math.min(scx, tcx) - 1) * CLUSTER_SIZE;
+      s.boxY = Math.max(0, Math.min(scy, tcy) - 1) * CLUSTER_SIZE;
+      s.boxW = Math.min(width, (Math.max(scx, tcx) + 2) * CLUSTER_SIZE) - s.boxX;
+      s.boxH = Math.min(height, (Math.max(scy, tcy) + 2) * CLUSTER_SIZE) - s.boxY;
+      bfs(s.boxX, s.boxY, s.boxW, s.boxH, tx, ty, s.boxDist, s.queue);
+      return s.boxDist[(sx - s.boxX) * s.boxH + (sy - s.boxY)] > 0;
+   }
+
+   // A* over the nodes, from a virtual start node to a virtual goal node.
+   // Returns true if the goal was reached, with the route left in the
+   // scratch parents, leading back from GOAL to START.
+   private boolean searchFar(Scratch s, int sx, int sy, int tx, int ty) {
+      // Distances from the start to the nodes of its cluster, and from the goal to the nodes of its
+      int scx = sx / CLUSTER_SIZE, scy = sy / CLUSTER_SIZE;
+      int tcx = tx / CLUSTER_SIZE, tcy = ty / CLUSTER_SIZE;
+      int sx0 = scx * CLUSTER_SIZE, sy0 = scy * CLUSTER_SIZE;
+      int sw = Math.min(CLUSTER_SIZE, width - sx0), sh = Math.min(CLUSTER_SIZE, height - sy0);
+      int tx0 = tcx * CLUSTER_SIZE, ty0 = tcy * CLUSTER_SIZE;
+      int tw = Math.min(CLUSTER_SIZE, width - tx0), th = Math.min(CLUSTER_SIZE, height - ty0);
+      bfs(sx0, sy0, sw, sh, sx, sy, s.startDist, s.queue);
+      bfs(tx0, ty0, tw, th, tx, ty, s.goalDist, s.queue);
+   
+      final int START = numNodes, GOAL = numNodes + 1;
+      int search = ++s.search;
+      int goalCluster = clusterOf(tx, ty);
+      s.heapSize = 0;
+      int startCluster = clusterOf(sx, sy);
+      for (int i = clusterFirst[startCluster]; i < clusterFirst[startCluster + 1]; i++) {
+         int n = clusterNodes[i];
+         int d = s.startDist[(nodeX[n] - sx0) * sh + (nodeY[n] - sy0)];
+         if (d > 0)
+            s.reach(n, d - 1, START, estimate(n, tx, ty));
+      }
+      while ((s.heapSize > 0) && (s.heap[0] != GOAL)) {
+         int n = s.pop();
+         int g = s.g[n];
+         if (nodeCluster[n] == goalCluster) {
+            int d = s.goalDist[(nodeX[n] - tx0) * th + (nodeY[n] - ty0)];
+            if (d > 0)
+               s.reach(GOAL, g + d - 1, n, 0);
+         }
+         for (int e = edgeFirst[n]; e < edgeFirst[n + 1]; e++) {
+            int m = edgeTo[e];
+            s.reach(m, g + edgeCost[e], n, estimate(m, tx, ty));
+         }
+      }
+      return s.seen[GOAL] == search;
+   }
+
+   /**
+    * Whether there is any path between two tiles, without searching for it
+    * @return true if both tiles are passable and on the same island
+    */
+   public boolean isReachable(int sx, int sy, int tx, int ty) {
+      return isPassable(sx, sy) && isPassable(tx, ty) && (region[sx * height + sy] == region[tx * height + ty]);
+   }
+
+   /**
+    * The island a tile is on
+    * @return the label of the tile's region, -1 if it is not passable or off the map
+    */
+   public int getRegion(int x, int y) {
+      return isPassable(x, y) ? region[x * height + y] : -1;
+   }
+
+   /**
+    * Number of islands of passable tiles
+    */
+   public int getNumRegions() {
+      return numRegions;
+   }
+
+   /**
+    * Number of nodes in the cluster graph
+    */
+   public int getNumNodes() {
+      return numNodes;
+   }
+
+   /**
+    * Number of edges in the cluster graph, counting each direction
+    */
+   public int getNumEdges() {
+      return edgeTo.length;
+   }
+
+   /**
+    * Benchmark, builds the graph for a random map and compares its first
+    * steps with flooding the map. Arguments: [size] [queries]
+    */
+   public static void main(String[] args) {
+      int size    = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+      int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+      Random random = new Random(1);
+   
+      // Grass with blobs of water and rock
+      int grass = TileTypes.forName("GRASS"), water = TileTypes.forName("WATER"), rock = TileTypes.forName("ROCK");
+      TileMap tiles = TileMap.create(size, size);
+      for (int x = 0; x < size; x++)
+         for (int y = 0; y < size; y++)
+            tiles.setType(x, y, grass);
+      for (int k = 0; k < size * size / 200; k++) {
+         int cx = random.nextInt(size), cy = random.nextInt(size), r = 1 + random.nextInt(4);
+         int type = random.nextBoolean() ? water : rock;
+         for (int x = Math.max(0, cx - r); x <= Math.min(size - 1, cx + r); x++)
+            for (int y = Math.max(0, cy - r); y <= Math.min(size - 1, cy + r); y++)
+               if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= r * r)
+                  tiles.setType(x, y, type);
+      }
+      tiles.loaded();
+   
+      Stats stats = new Stats();
+      PathGraph graph = new PathGraph(tiles);
+      System.out.printf("%dx%d map: %d regions, %d nodes, %d edges, built in %.3f s\n", size, size,
+                        graph.getNumRegions(), graph.getNumNodes(), graph.getNumEdges(), stats.elapsedTime());
+   
+      // Pairs of passable tiles at least a quarter of the map apart
+      int[][] pairs = new int[queries][];
+      for (int q = 0; q < queries; q++) {
+         int sx, sy, tx, ty;
+         do {
+            sx = random.nextInt(size); sy = random.nextInt(size);
+            tx = random.nextInt(size); ty = random.nextInt(size);
+         } while (!tiles.isPassable(sx, sy) || !tiles.isPassable(tx, ty) 
+                  || (Math.abs(sx - tx) + Math.abs(sy - ty) < size / 4));
+         pairs[q] = new int[] {sx, sy, tx, ty};
+      }
+   
+      for (int pass = 0; pass < 3; pass++) {
+         long hpaNanos = 0, floodNanos = 0;
+         int found = 0;
+         int[] dist = new int[size * size];
+         int[] queue = new int[size * size];
+         for (int[] p : pairs) {
+            long start = System.nanoTime();
+            int step = graph.firstStep(p[0], p[1], p[2], p[3]);
+            hpaNanos += System.nanoTime() - start;
+            if (step >= 0)
+               found++;
+            if (pass == 0) {
+               start = System.nanoTime();
+               graph.bfs(0, 0, size, size, p[2], p[3], dist, queue);
+               graph.stepDown(0, 0, size, size, p[0], p[1], dist);
+               floodNanos += System.nanoTime() - start;
+            }
+         }
+         System.out.printf("HPA* %.1f us per step (%d of %d found)%s\n", hpaNanos / 1000.0 / queries, found, queries,
+                           (pass == 0) ? String.format(", flooding the map %.1f us per step", floodNanos / 1000.0 / queries) : "");
+      }
+   }
+}
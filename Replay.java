@@ -0,0 +1,103 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Replays a session recorded by InputRecorder, headless and as fast as the
+ * CPU allows. Monsters are scheduled on game time and all randomness comes
+ * from the recorded seed, so the replay plays out exactly like the original.
+ *
+ * Usage: java Replay session.ulog [-check]
+ */
+public class Replay {
+
+   /**
+    * Play back a recorded session
+    * @param args - the log file to replay, then -check to also check the outcome
+    *               doesn't depend on how often a game loop steps or redraws
+    */
+   public static void main(String [] args) throws IOException {
+      if (args.length < 1) {
+         System.out.println("Usage: java Replay <session log> [-check]");
+         return;
+      }
+   
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+      if ((in.readInt() != InputRecorder.MAGIC) || (in.readByte() != InputRecorder.VERSION)) {
+         System.out.println("Not a session log: " + args[0]);
+         in.close();
+         return;
+      }
+      long seed    = in.readLong();
+      String level = in.readUTF();
+   
+      // The actions, the last is a 0 key at the time the session ended
+      long[] times = new long[64];
+      char[] keys  = new char[64];
+      int n = 0;
+      long now = 0;
+      while (true) {
+         if (n == times.length) {
+            times = Arrays.copyOf(times, n * 2);
+            keys  = Arrays.copyOf(keys, n * 2);
+         }
+         now += InputRecorder.readVarLong(in);
+         times[n] = now;
+         keys[n]  = (char) in.readUnsignedByte();
+         if (keys[n++] == 0)
+            break;
+      }
+      in.close();
+   
+      Stats stats = new Stats();
+      World world = play(level, seed, times, keys, n, 0, 0);
+      double elapsed = stats.elapsedTime();
+   
+      System.out.printf("level %s, seed %d, %d actions over %.1f s of game time\n", level, seed, n - 1, now / 1e9);
+      System.out.printf("replayed in %.3f s (%.0fx real time)\n", elapsed, (now / 1e9) / Math.max(elapsed, 1e-3));
+      System.out.printf("avatar %s, %d monsters left, checksum %016x\n", 
+                        world.avatarAlive() ? "alive" : "dead", world.getNumMonsters(), world.checksum());
+      long[] paths = world.getPathCacheStats();
+      System.out.printf("path cache: %d hits, %d misses (%.0f%% hits)\n", paths[0], paths[1],
+                        100.0 * paths[0] / Math.max(1, paths[0] + paths[1]));
+   
+      // A live game moves the monsters between actions and publishes snapshots as
+      // it redraws, however often the machine it runs on manages to
+      if ((args.length > 1) && args[1].equals("-check")) {
+         long[][] loops = {{0, 1}, {16000000L, 1}, {16000000L, 3}, {5000000L, 7}};
+         for (long[] loop : loops) {
+            long sum = play(level, seed, times, keys, n, loop[0], (int) loop[1]).checksum();
+            System.out.printf("stepping every %.0f ms, publishing every %d steps: checksum %016x %s\n", 
+                              loop[0] / 1e6, loop[1], sum, (sum == world.checksum()) ? "same" : "DIFFERENT");
+         }
+      }
+   }
+
+   /**
+    * Play the actions on a virtual clock
+    * @param stepNanos    - also step the monsters this often between actions, 0 to only step at actions
+    * @param publishEvery - publish a snapshot after this many steps, 0 never to
+    * @return the world as the session ended
+    */
+   private static World play(String level, long seed, long[] times, char[] keys, int n, long stepNanos, int publishEvery) {
+      GameClock.Virtual clock = new GameClock.Virtual();
+      World world = new World(level, seed, false, clock);
+      long steps = 0;
+      for (int i = 0; i < n; i++) {
+         if (stepNanos > 0) {
+            for (long t = clock.now() + stepNanos; t < times[i]; t += stepNanos) {
+               clock.advanceTo(t);
+               world.moveMonsters(t);
+               if ((publishEvery > 0) && (++steps % publishEvery == 0))
+                  world.publishSnapshot();
+            }
+         }
+         clock.advanceTo(times[i]);
+         world.moveMonsters(times[i]);
+         if (keys[i] != 0)
+            world.handleKey(keys[i]);
+         if ((publishEvery > 0) && (++steps % publishEvery == 0))
+            world.publishSnapshot();
+      }
+      return world;
+   }
+}
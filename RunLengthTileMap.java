@@ -0,0 +1,466 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * A TileMap for big, mostly empty outdoor levels, that stores each row of
+ * tiles as runs of the same type. Finding a tile's type is a binary search of
+ * its row's runs. As most reads are of the tiles around the avatar and the
+ * monsters that are awake, square chunks of tiles are unpacked into a small
+ * cache of hot chunks and read from there.
+ *
+ * Each row is packed into runs while the level loads: setting the tile just
+ * past a row's last run grows that run or starts the next, so a level read
+ * from left to right never holds more than its runs, and loaded() only trims
+ * them. Changing a tile's type afterwards repacks its row, which is fine for
+ * restoring a checkpoint but not for every move. Lit bits and metadata are
+ * only kept for the chunks that have any, and like in the World they are
+ * only read and written while holding the World lock.
+ *
+ * Packing only pays on big, sparse maps. A dense map takes 2.125 bytes a
+ * tile. This one takes about 64 bytes a row and 5 a run, 8 a chunk for the
+ * lit and metadata index, and up to 1 KB for each hot chunk, about 270 KB
+ * once the default cache fills. So a map needs well under one run per two
+ * tiles of a row and more than about 350 x 350 tiles before it is smaller:
+ * the 40 x 40 level takes nearly 3 times the dense bytes, while a 4000 x 4000
+ * grass map crossed by rivers and paths (see main) takes 5%.
+ */
+public class RunLengthTileMap extends TileMap {
+   public static final int CHUNK_SIZE = 32;           // chunks are CHUNK_SIZE x CHUNK_SIZE tiles
+   public static final int DEFAULT_HOT_SIDE = 16;     // the default cache holds any 16 x 16 chunks around a point
+
+   // The runs of one row, run k covers x from start[k] up to start[k + 1]
+   private static final class Row {
+      final int[] start;
+      final byte[] type;
+   
+      Row(int[] start, byte[] type) {
+         this.start = start;
+         this.type  = type;
+      }
+   }
+
+   // The runs of one row while the level loads, run k covers x from from[k] up
+   // to to[k]. Bands of the level are parsed at once, so a row can be set by two
+   // threads, and a row not set strictly from left to right is unpacked and
+   // repacked when it is built.
+   private static final class RowBuilder {
+      private int[] from = new int[4];
+      private int[] to   = new int[4];
+      private byte[] type = new byte[4];
+      private int runs = 0;
+   
+      synchronized void set(int x, int value) {
+         if ((runs > 0) && (to[runs - 1] == x) && (type[runs - 1] == (byte) value)) {
+            to[runs - 1]++;
+            return;
+         }
+         if (runs == from.length) {
+            from = Arrays.copyOf(from, 2 * runs);
+            to   = Arrays.copyOf(to, 2 * runs);
+            type = Arrays.copyOf(type, 2 * runs);
+         }
+         from[runs]   = x;
+         to[runs]     = x + 1;
+         type[runs++] = (byte) value;
+      }
+   
+      // The last type set at x, 0 if none was
+      synchronized int get(int x) {
+         for (int k = runs - 1; k >= 0; k--)
+            if ((from[k] <= x) && (x < to[k]))
+               return type[k] & 0xFF;
+         return 0;
+      }
+   
+      synchronized Row build(int width) {
+         int x = 0, k = 0;
+         while ((k < runs) && (from[k] == x))
+            x = to[k++];
+         if ((k == runs) && (x == width))
+            return new Row(Arrays.copyOf(from, runs), Arrays.copyOf(type, runs));
+         byte[] unpacked = new byte[width];
+         for (k = 0; k < runs; k++)
+            Arrays.fill(unpacked, from[k], to[k], type[k]);
+         return pack(unpacked, 0, width);
+      }
+   
+      synchronized long getBytes() {
+         return 16 + 3 * 16 + 9L * from.length;
+      }
+   }
+
+   // The types of one chunk, unpacked, indexed (x % CHUNK_SIZE) * CHUNK_SIZE + y % CHUNK_SIZE
+   private static final class Chunk {
+      final int id;
+      final byte[] types;
+   
+      Chunk(int id, byte[] types) {
+         this.id    = id;
+         this.types = types;
+      }
+   }
+
+   private RowBuilder[] loading;                           // the rows as they are set, until loaded()
+   private final Row[] rows;                               // the packed rows, once loaded
+   private final int chunksY;                              // chunks in each column of chunks
+   private final int hotSide;                              // side of the hot cache in chunks, a power of 2
+   private final Chunk[] hot;                              // slot (cx % hotSide) * hotSide + cy % hotSide
+   private final long[][] litChunks;                       // lit bits by chunk, null for chunks with no lit tiles
+   private final byte[][] metaChunks;                      // metadata by chunk, null for chunks with none
+
+   /**
+    * Make an empty map with the default hot cache
+    */
+   public RunLengthTileMap(int width, int height) {
+      this(width, height, DEFAULT_HOT_SIDE);
+   }
+
+   /**
+    * Make an empty map
+    * @param hotSide - the hot cache holds hotSide x hotSide chunks, rounded up to a power of 2
+    */
+   public RunLengthTileMap(int width, int height, int hotSide) {
+      super(width, height);
+      this.loading = new RowBuilder[height];
+      for (int y = 0; y < height; y++)
+         loading[y] = new RowBuilder();
+      this.rows    = new Row[height];
+      this.chunksY = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      this.hotSide = (hotSide <= 1) ? 1 : Integer.highestOneBit(hotSide - 1) << 1;
+      this.hot     = new Chunk[this.hotSide * this.hotSide];
+      int chunks   = (width + CHUNK_SIZE - 1) / CHUNK_SIZE * chunksY;
+      this.litChunks  = new long[chunks][];
+      this.metaChunks = new byte[chunks][];
+   }
+
+   /**
+    * Trim the runs each row was packed into while loading, a row at a time on
+    * the common pool
+    */
+   @Override
+   public void loaded() {
+      if (loading == null)
+         return;
+      IntStream.range(0, height).parallel().forEach(y -> rows[y] = loading[y].build(width));
+      loading = null;
+   }
+
+   // Pack width types starting at from into runs
+   private static Row pack(byte[] types, int from, int width) {
+      int runs = 0;
+      for (int x = 0; x < width; x++)
+         if ((x == 0) || (types[from + x] != types[from + x - 1]))
+            runs++;
+      int[] start = new int[runs];
+      byte[] type = new byte[runs];
+      int k = 0;
+      for (int x = 0; x < width; x++) {
+         if ((x == 0) || (types[from + x] != types[from + x - 1])) {
+            start[k] = x;
+            type[k++] = types[from + x];
+         }
+      }
+      return new Row(start, type);
+   }
+
+   // The run of a row that covers x
+   private static int runAt(Row row, int x) {
+      int k = Arrays.binarySearch(row.start, x);
+      return (k >= 0) ? k : -k - 2;
+   }
+
+   // Unpack one chunk from the rows it crosses
+   private Chunk unpack(int id) {
+      int x0 = (id / chunksY) * CHUNK_SIZE;
+      int y0 = (id % chunksY) * CHUNK_SIZE;
+      byte[] types = new byte[CHUNK_SIZE * CHUNK_SIZE];
+      int x1 = Math.min(width, x0 + CHUNK_SIZE);
+      int y1 = Math.min(height, y0 + CHUNK_SIZE);
+      for (int y = y0; y < y1; y++) {
+         Row row = rows[y];
+         int k = runAt(row, x0);
+         for (int x = x0; x < x1; x++) {
+            if ((k + 1 < row.start.length) && (x >= row.start[k + 1]))
+               k++;
+            types[(x - x0) * CHUNK_SIZE + (y - y0)] = row.type[k];
+         }
+      }
+      return new Chunk(id, types);
+   }
+
+   private int chunkOf(int x, int y) {
+      return (x / CHUNK_SIZE) * chunksY + y / CHUNK_SIZE;
+   }
+
+   private int slotOf(int x, int y) {
+      return ((x / CHUNK_SIZE) & (hotSide - 1)) * hotSide + ((y / CHUNK_SIZE) & (hotSide - 1));
+   }
+
+   private static int bitOf(int x, int y) {
+      return (x % CHUNK_SIZE) * CHUNK_SIZE + y % CHUNK_SIZE;
+   }
+
+   /**
+    * Read from the hot chunk holding (x, y), unpacking it first if it isn't 
+    * there. Chunks never change once made, so threads racing to replace 
+    * the same slot each see a whole chunk.
+    */
+   @Override
+   public int getType(int x, int y) {
+      RowBuilder[] building = loading;
+      if (building != null)
+         return building[y].get(x);
+      int id = chunkOf(x, y);
+      int slot = slotOf(x, y);
+      Chunk chunk = hot[slot];
+      if ((chunk == null) || (chunk.id != id))
+         hot[slot] = chunk = unpack(id);
+      return chunk.types[bitOf(x, y)] & 0xFF;
+   }
+
+   /**
+    * Read the type straight from the packed row, without the hot cache
+    */
+   public int getPackedType(int x, int y) {
+      RowBuilder[] building = loading;
+      if (building != null)
+         return building[y].get(x);
+      Row row = rows[y];
+      return row.type[runAt(row, x)] & 0xFF;
+   }
+
+   @Override
+   public void setType(int x, int y, int type) {
+      RowBuilder[] building = loading;
+      if (building != null) {
+         building[y].set(x, type);
+         return;
+      }
+      Row row = rows[y];
+      if ((row.type[runAt(row, x)] & 0xFF) == type)
+         return;
+      byte[] unpacked = new byte[width];
+      for (int k = 0; k < row.start.length; k++)
+         Arrays.fill(unpacked, row.start[k], (k + 1 < row.start.length) ? row.start[k + 1] : width, row.type[k]);
+      unpacked[x] = (byte) type;
+      rows[y] = pack(unpacked, 0, width);
+      int slot = slotOf(x, y);
+      Chunk chunk = hot[slot];
+      if ((chunk != null) && (chunk.id == chunkOf(x, y)))
+         hot[slot] = null;
+   }
+
+   @Override
+   public boolean isLit(int x, int y) {
+      long[] lit = litChunks[chunkOf(x, y)];
+      int bit = bitOf(x, y);
+      return (lit != null) && ((lit[bit >>> 6] & (1L << bit)) != 0);
+   }
+
+   @Override
+   public void setLit(int x, int y, boolean value) {
+      int bit = bitOf(x, y);
+      int id = chunkOf(x, y);
+      long[] lit = litChunks[id];
+      if (lit == null) {
+         if (!value)
+            return;
+         lit = litChunks[id] = new long[CHUNK_SIZE * CHUNK_SIZE / 64];
+      }
+      if (value)
+         lit[bit >>> 6] |= 1L << bit;
+      else
+         lit[bit >>> 6] &= ~(1L << bit);
+   }
+
+   @Override
+   public void setAllLit(boolean value) {
+      Arrays.fill(litChunks, null);
+      if (!value)
+         return;
+      for (int x = 0; x < width; x++)
+         for (int y = 0; y < height; y++)
+            setLit(x, y, true);
+   }
+
+   @Override
+   public void copyLit(long[] words) {
+      Arrays.fill(words, 0, (width * height + 63) >>> 6, 0L);
+      for (int id = 0; id < litChunks.length; id++) {
+         long[] lit = litChunks[id];
+         if (lit == null)
+            continue;
+         int x0 = (id / chunksY) * CHUNK_SIZE;
+         int y0 = (id % chunksY) * CHUNK_SIZE;
+         for (int w = 0; w < lit.length; w++) {
+            for (long bits = lit[w]; bits != 0; bits &= bits - 1) {
+               int bit = w * 64 + Long.numberOfTrailingZeros(bits);
+               int i = (x0 + bit / CHUNK_SIZE) * height + y0 + bit % CHUNK_SIZE;
+               words[i >>> 6] |= 1L << i;
+            }
+         }
+      }
+   }
+
+   @Override
+   public int getMeta(int x, int y) {
+      byte[] meta = metaChunks[chunkOf(x, y)];
+      return (meta == null) ? 0 : meta[bitOf(x, y)] & 0xFF;
+   }
+
+   @Override
+   public void setMeta(int x, int y, int value) {
+      int id = chunkOf(x, y);
+      byte[] meta = metaChunks[id];
+      if (meta == null) {
+         if ((value & 0xFF) == 0)
+            return;
+         meta = metaChunks[id] = new byte[CHUNK_SIZE * CHUNK_SIZE];
+      }
+      meta[bitOf(x, y)] = (byte) value;
+   }
+
+   /**
+    * Roughly how many bytes the map takes: the rows, the hot chunks and
+    * the lit and metadata chunks, counting 16 bytes for each object header
+    */
+   @Override
+   public long getBytes() {
+      long bytes = 16L + 4L * rows.length + 4L * hot.length + 8L * litChunks.length;
+      RowBuilder[] building = loading;
+      if (building != null)
+         for (RowBuilder row : building)
+            bytes += row.getBytes();
+      for (Row row : rows)
+         if (row != null)
+            bytes += 16 + (16 + 4L * row.start.length) + (16 + row.type.length);
+      for (Chunk chunk : hot)
+         if (chunk != null)
+            bytes += 16 + 16 + chunk.types.length;
+      for (int id = 0; id < litChunks.length; id++) {
+         if (litChunks[id] != null)
+            bytes += 16 + CHUNK_SIZE * CHUNK_SIZE / 8;
+         if (metaChunks[id] != null)
+            bytes += 16 + CHUNK_SIZE * CHUNK_SIZE;
+      }
+      return bytes;
+   }
+
+   /**
+    * How many runs the rows have been packed into
+    */
+   public long getNumRuns() {
+      long runs = 0;
+      for (Row row : rows)
+         if (row != null)
+            runs += row.start.length;
+      return runs;
+   }
+
+   // A size x size outdoor map, filled a row at a time from the left as a level
+   // file is: grass, crossed by a few winding rivers and paths, dotted with bushes
+   private static TileMap outdoors(TileMap map, int size, SplittableRandom random) {
+      int grass = TileTypes.forName("GRASS"), water = TileTypes.forName("WATER");
+      int path  = TileTypes.forName("PATH"),  bush  = TileTypes.forName("BUSH");
+      int rivers = 1 + size / 500, paths = 1 + size / 250;
+      int[] riverY = new int[rivers], pathX = new int[paths];
+      for (int k = 0; k < rivers; k++)
+         riverY[k] = random.nextInt(size);
+      for (int k = 0; k < paths; k++)
+         pathX[k] = random.nextInt(size);
+      byte[] row = new byte[size];
+      for (int y = 0; y < size; y++) {
+         Arrays.fill(row, (byte) grass);
+         for (int k = 0; k < paths; k++) {
+            pathX[k] = Math.max(1, Math.min(size - 2, pathX[k] + random.nextInt(3) - 1));
+            Arrays.fill(row, pathX[k] - 1, pathX[k] + 2, (byte) path);
+         }
+         for (int k = 0; k < size / 1000; k++)
+            row[random.nextInt(size)] = (byte) bush;
+         for (int x = 0; x < size; x++)
+            map.setType(x, y, row[x]);
+      }
+      for (int k = 0; k < rivers; k++) {
+         for (int x = 0; x < size; x++) {
+            riverY[k] = Math.max(2, Math.min(size - 3, riverY[k] + random.nextInt(3) - 1));
+            for (int y = riverY[k] - 2; y <= riverY[k] + 2; y++)
+               map.setType(x, y, water);
+         }
+      }
+      map.loaded();
+      return map;
+   }
+
+   /**
+    * Test main method, compares the size of a map and how long reads take,
+    * dense against packed into runs. The map is either a level file, or for
+    * a number a made up outdoor map of that size, mostly grass, which is the
+    * kind of map packing is for. Reads are made all over the map, and within
+    * a window's reach of the avatar, or of the middle of a made up map, as
+    * the game mostly does. Arguments: [level or size] [reads]
+    */
+   public static void main(String[] args) {
+      String level = (args.length > 0) ? args[0] : "4000";
+      int reads    = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+   
+      TileMap dense;
+      int centerX, centerY;
+      Stats stats;
+      RunLengthTileMap packed;
+      if (level.matches("\\d+")) {
+         int size = Integer.parseInt(level);
+         dense = outdoors(BufferTileMap.onHeap(size, size), size, new SplittableRandom(1));
+         stats = new Stats();
+         packed = new RunLengthTileMap(size, size);
+         outdoors(packed, size, new SplittableRandom(1));
+         centerX = size / 2;
+         centerY = size / 2;
+      } else {
+         System.setProperty("ultima.tilemap", "heap");
+         World world = new World(level, 0, false);
+         dense = world.getTileMap();
+         stats = new Stats();
+         packed = new RunLengthTileMap(dense.getWidth(), dense.getHeight());
+         for (int y = 0; y < dense.getHeight(); y++)
+            for (int x = 0; x < dense.getWidth(); x++)
+               packed.setType(x, y, dense.getType(x, y));
+         packed.loaded();
+         centerX = world.getAvatarTile().getX();
+         centerY = world.getAvatarTile().getY();
+      }
+      int width = dense.getWidth(), height = dense.getHeight();
+      System.out.printf("%dx%d map, %d runs, packed in %.3f s\n", 
+                        width, height, packed.getNumRuns(), stats.elapsedTime());
+   
+      // Points anywhere, then points within 32 tiles of the avatar
+      SplittableRandom random = new SplittableRandom(1);
+      int[] anywhere = new int[2 * reads], near = new int[2 * reads];
+      for (int i = 0; i < reads; i++) {
+         anywhere[2 * i]     = random.nextInt(width);
+         anywhere[2 * i + 1] = random.nextInt(height);
+         near[2 * i]         = Math.max(0, Math.min(width - 1, centerX - 32 + random.nextInt(65)));
+         near[2 * i + 1]     = Math.max(0, Math.min(height - 1, centerY - 32 + random.nextInt(65)));
+      }
+   
+      for (int pass = 0; pass < 3; pass++) {
+         long[] nanos = new long[5], sums = new long[5];
+         for (int k = 0; k < 5; k++) {
+            TileMap map  = ((k == 0) || (k == 2)) ? dense : packed;
+            int[] points = ((k == 2) || (k == 3)) ? near : anywhere;
+            long start = System.nanoTime();
+            for (int i = 0; i < reads; i++)
+               sums[k] += (k == 1) ? packed.getPackedType(points[2 * i], points[2 * i + 1]) 
+                                   : map.getType(points[2 * i], points[2 * i + 1]);
+            nanos[k] = System.nanoTime() - start;
+         }
+         if ((sums[1] != sums[0]) || (sums[4] != sums[0]) || (sums[3] != sums[2]))
+            System.out.println("packed and dense maps differ");
+         System.out.printf("ns per read anywhere: dense %.1f, runs %.1f, hot chunks %.1f; "
+                           + "near the avatar: dense %.1f, hot chunks %.1f\n",
+                           nanos[0] / (double) reads, nanos[1] / (double) reads, nanos[4] / (double) reads,
+                           nanos[2] / (double) reads, nanos[3] / (double) reads);
+      }
+      System.out.printf("map bytes: dense %d, runs with hot chunks %d (%.1f%%)\n", 
+                        dense.getBytes(), packed.getBytes(), 100.0 * packed.getBytes() / dense.getBytes());
+   }
+}
@@ -0,0 +1,60 @@
+import java.util.SplittableRandom;
+
+/**
+ * Soak test: plays headless worlds back to back on a virtual clock, with an
+ * avatar wandering about at random, until the given amount of game time has
+ * been played. Nothing waits on the wall clock, so hours of play take seconds.
+ *
+ * Usage: java Soak [hours] [level] [key ms]
+ */
+public class Soak {
+
+   /**
+    * Play the worlds
+    * @param args - hours of game time, the level file, game time between keys
+    */
+   public static void main(String [] args) {
+      double hours = (args.length > 0) ? Double.parseDouble(args[0]) : 1.0;
+      String level = (args.length > 1) ? args[1] : "40x40.txt";
+      long keyNanos = ((args.length > 2) ? Long.parseLong(args[2]) : 250) * 1000000L;
+      long target = (long) (hours * 3600e9);
+   
+      char[] keys = {'w', 'a', 's', 'd', 'w', 'a', 's', 'd', '+', '-'};
+      Stats stats = new Stats();
+      long played = 0;
+      int games = 0;
+      int wins = 0;
+      long steps = 0;
+      while (played < target) {
+         GameClock.Virtual clock = new GameClock.Virtual();
+         World world = new World(level, games, false, clock);
+         SplittableRandom random = new SplittableRandom(games);
+         long nextKey = 0;
+      
+         // The same loop as Ultima, with this thread typing the keys as well
+         while (world.avatarAlive() && (world.getNumMonsters() > 0) && (played + clock.now() < target)) {
+            long now = clock.now();
+            if (now >= nextKey) {
+               world.getInput().typed(keys[random.nextInt(keys.length)]);
+               nextKey = now + keyNanos;
+            }
+            world.moveMonsters(now);
+            world.handleKeyPress(now);
+            steps++;
+         
+            long wake = Math.min(nextKey, Math.min(world.nextMonsterNanos(), world.nextInputNanos(now)));
+            clock.waitUntil(wake, world.getInput());
+         }
+      
+         played += clock.now();
+         games++;
+         if (world.getNumMonsters() == 0)
+            wins++;
+      }
+      double elapsed = stats.elapsedTime();
+   
+      System.out.printf("%d games on %s, %d won, %d steps\n", games, level, wins, steps);
+      System.out.printf("%.2f h of game time in %.3f s (%.0fx real time)\n", 
+                        played / 3600e9, elapsed, (played / 1e9) / Math.max(elapsed, 1e-3));
+   }
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform grid over the tiles of a World. Each cell covers CELL_SIZE x
+ * CELL_SIZE tiles and holds the handles of the monsters standing in it, so
+ * the monsters in an area can be found without looking at all of them.
+ * Locations off the board aren't stored. Not synchronized, guarded by the
+ * World lock like the MonsterStore that keeps it up to date.
+ */
+public class SpatialGrid {
+   public static final int CELL_SHIFT = 3;
+   public static final int CELL_SIZE  = 1 << CELL_SHIFT;      // tiles along each side of a cell
+
+   private final int width, height;           // size of the world in tiles
+   private final int cellsX, cellsY;          // size of the grid in cells
+   private final int[][] cells;               // handles in each cell, cell (cx * cellsY + cy)
+   private final int[] counts;                // how many handles each cell holds
+
+   /**
+    * Create an empty grid
+    * @param width  - width of the world in tiles
+    * @param height - height of the world in tiles
+    */
+   public SpatialGrid(int width, int height) {
+      this.width  = width;
+      this.height = height;
+      cellsX = (width + CELL_SIZE - 1) >> CELL_SHIFT;
+      cellsY = (height + CELL_SIZE - 1) >> CELL_SHIFT;
+      cells  = new int[cellsX * cellsY][];
+      counts = new int[cellsX * cellsY];
+   }
+
+   // The cell holding a location, -1 if it is off the board
+   private int cellOf(int x, int y) {
+      if ((x < 0) || (y < 0) || (x >= width) || (y >= height))
+         return -1;
+      return (x >> CELL_SHIFT) * cellsY + (y >> CELL_SHIFT);
+   }
+
+   /**
+    * Add a handle at a location
+    */
+   public void add(int handle, int x, int y) {
+      int cell = cellOf(x, y);
+      if (cell < 0)
+         return;
+      int[] bucket = cells[cell];
+      if (bucket == null)
+         bucket = cells[cell] = new int[4];
+      else if (counts[cell] == bucket.length)
+         bucket = cells[cell] = Arrays.copyOf(bucket, bucket.length * 2);
+      bucket[counts[cell]++] = handle;
+   }
+
+   /**
+    * Remove a handle from the location it was added at
+    */
+   public void remove(int handle, int x, int y) {
+      int cell = cellOf(x, y);
+      if (cell < 0)
+         return;
+      int[] bucket = cells[cell];
+      int n = counts[cell];
+      for (int i = 0; i < n; i++) {
+         if (bucket[i] == handle) {
+            bucket[i] = bucket[n - 1];
+            counts[cell] = n - 1;
+            return;
+         }
+      }
+   }
+
+   /**
+    * Move a handle, only touching the grid if it changed cell
+    */
+   public void move(int handle, int oldX, int oldY, int newX, int newY) {
+      int oldCell = cellOf(oldX, oldY);
+      int newCell = cellOf(newX, newY);
+      if (oldCell == newCell)
+         return;
+      remove(handle, oldX, oldY);
+      add(handle, newX, newY);
+   }
+
+   /**
+    * Visit the handles in every cell overlapping a rectangle of tiles. Handles
+    * near the rectangle may be visited too, check their locations.
+    * @param minX    - left edge of the rectangle, inclusive
+    * @param minY    - bottom edge of the rectangle, inclusive
+    * @param maxX    - right edge of the rectangle, inclusive
+    * @param maxY    - top edge of the rectangle, inclusive
+    * @param visitor - given each handle
+    */
+   public void query(int minX, int minY, int maxX, int maxY, IntConsumer visitor) {
+      int cx0 = Math.max(0, minX) >> CELL_SHIFT;
+      int cy0 = Math.max(0, minY) >> CELL_SHIFT;
+      int cx1 = Math.min(width - 1, maxX) >> CELL_SHIFT;
+      int cy1 = Math.min(height - 1, maxY) >> CELL_SHIFT;
+      for (int cx = cx0; cx <= cx1; cx++) {
+         for (int cy = cy0; cy <= cy1; cy++) {
+            int cell = cx * cellsY + cy;
+            int[] bucket = cells[cell];
+            for (int i = 0; i < counts[cell]; i++)
+               visitor.accept(bucket[i]);
+         }
+      }
+   }
+
+   /**
+    * The handles in the cell holding a location, valid until the grid next changes
+    * @return the handles, of which the first count(x, y) are in use
+    */
+   int[] cellAt(int x, int y) {
+      int cell = cellOf(x, y);
+      return (cell < 0) ? null : cells[cell];
+   }
+
+   /**
+    * How many handles are in the cell holding a location
+    */
+   int count(int x, int y) {
+      int cell = cellOf(x, y);
+      return (cell < 0) ? 0 : counts[cell];
+   }
+
+   /**
+    * Remove every handle
+    */
+   public void clear() {
+      Arrays.fill(counts, 0);
+   }
+}
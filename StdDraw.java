@@ -29,11 +29,15 @@ import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
-import java.util.TreeSet;
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *  <i>Standard draw</i>. This class provides a basic capability for
@@ -49,6 +53,15 @@ import java.util.HashMap;
  *
  *  Changes by Keith Vertanen:
  *    1) Caching of loaded Image objects, default is caching is on, change by calling setCaching
+ *
+ *  Other changes:
+ *    2) Active rendering, the offscreen image is flipped straight to a Canvas
+ *       through a page-flipping BufferStrategy instead of copied and repainted
+ *    3) number() draws integers from a cached digit atlas, for per-frame overlays
+ *    4) Keyboard state is lock free, typed keys go through a single producer /
+ *       single consumer ring buffer with timestamps, pressed keys are a bitset,
+ *       all kept in a KeyInput so worlds without a window can have their own
+ *    5) waitForInput() lets the game thread sleep until a key event arrives
  */
 public final class StdDraw implements ActionListener, MouseListener, MouseMotionListener, KeyListener {
 
@@ -112,7 +125,6 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
 
     // for synchronization
     private static Object mouseLock = new Object();
-    private static Object keyLock = new Object();
 
     // default font
     private static final Font DEFAULT_FONT = new Font("SansSerif", Font.PLAIN, 16);
@@ -120,9 +132,21 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
     // current font
     private static Font font;
 
-    // double buffered graphics
-    private static BufferedImage offscreenImage, onscreenImage;
-    private static Graphics2D offscreen, onscreen;
+    // overlay numbers, digits 0-9 and '-' are pre-rendered once per color into a strip
+    private static final Font GLYPH_FONT = new Font("SansSerif", Font.BOLD, 14);
+    private static final Color GLYPH_BACKGROUND = new Color(0, 0, 0, 150);
+    private static final String GLYPHS = "0123456789-";
+    private static final HashMap<Color, BufferedImage> glyphAtlas = new HashMap<Color, BufferedImage>();
+    private static final int[] glyphDigits = new int[11];
+    private static int glyphWidth, glyphHeight, glyphAscent, glyphDescent;
+
+    // double buffered graphics, offscreen is what we draw into, the canvas
+    // buffer strategy pages it onto the display
+    private static BufferedImage offscreenImage;
+    private static Graphics2D offscreen;
+    private static Canvas canvas;
+    private static BufferStrategy strategy;
+    private static final Object blitLock = new Object();   // the drawing thread and AWT repaints both blit
 
     // singleton for callbacks: avoids generation of extra .class files
     private static StdDraw std = new StdDraw();
@@ -135,15 +159,19 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
     private static double mouseX = 0;
     private static double mouseY = 0;
 
-    // queue of typed key characters
-    private static LinkedList<Character> keysTyped = new LinkedList<Character>();
-
-    // set of key codes currently pressed down
-    private static TreeSet<Integer> keysDown = new TreeSet<Integer>();
+    // keyboard state fed by the event dispatch thread, read by the game thread
+    private static final KeyInput keys = new KeyInput();
     
     // For caching of Image files, prevents glitches in video games, etc.
-    private static HashMap<String, Image> imageCache = new HashMap<String, Image>();
-    private static boolean imageCaching = true;
+    // Images can be loaded on the preloader thread while others are drawn.
+    private static final long DEFAULT_IMAGE_CACHE_BYTES = 64L << 20;
+    private static final ImageCache imageCache = new ImageCache(DEFAULT_IMAGE_CACHE_BYTES);
+    private static volatile boolean imageCaching = true;
+    private static final ExecutorService preloader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "image preloader");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     // Turn image caching on or off, by default caching is on.
     // This helps prevents glitches if images are drawn frequently.
@@ -154,6 +182,17 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
             imageCache.clear();
     }
 
+    /**
+     * Set how many bytes of decoded images the cache keeps, the least recently
+     * drawn are dropped to stay within it. By default 64 MB.
+     *
+     * @param bytes the most bytes of pixels to keep
+     */
+    public static void setImageCacheBytes(long bytes)
+    {
+        imageCache.setCapacity(bytes);
+    }
+
 
     // singleton pattern: client can't instantiate
     private StdDraw() { }
@@ -187,12 +226,16 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
 
     // init
     private static void init() {
-        if (frame != null) frame.setVisible(false);
+        synchronized (blitLock) { strategy = null; }
+        if (frame != null) frame.dispose();
         frame = new JFrame();
-        offscreenImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        onscreenImage  = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        // accelerated image matching the display so blits to the canvas need no conversion
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                                                      .getDefaultScreenDevice()
+                                                      .getDefaultConfiguration();
+        offscreenImage = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
         offscreen = offscreenImage.createGraphics();
-        onscreen  = onscreenImage.createGraphics();
         setXscale();
         setYscale();
         offscreen.setColor(DEFAULT_CLEAR_COLOR);
@@ -200,7 +243,6 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
         setPenColor();
         setPenRadius();
         setFont();
-        clear();
 
         // add antialiasing
         RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING,
@@ -208,23 +250,42 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
         hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         offscreen.addRenderingHints(hints);
 
-        // frame stuff
-        ImageIcon icon = new ImageIcon(onscreenImage);
-        JLabel draw = new JLabel(icon);
-
-        draw.addMouseListener(std);
-        draw.addMouseMotionListener(std);
-
-        frame.setContentPane(draw);
-        frame.addKeyListener(std);    // JLabel cannot get keyboard focus
+        // frame stuff, we paint the canvas ourselves, AWT only asks for a repaint when
+        // the window is uncovered or restored, and then gets the last frame shown again
+        canvas = new Canvas(gc) {
+            @Override
+            public void paint(Graphics g) {
+                blit();
+            }
+
+            @Override
+            public void update(Graphics g) {
+                blit();
+            }
+        };
+        canvas.setPreferredSize(new Dimension(width, height));
+        canvas.setFocusable(true);
+
+        canvas.addMouseListener(std);
+        canvas.addMouseMotionListener(std);
+        canvas.addKeyListener(std);
+
+        frame.setContentPane(new JPanel(new BorderLayout()));
+        frame.getContentPane().add(canvas, BorderLayout.CENTER);
+        frame.addKeyListener(std);
         frame.setResizable(false);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);            // closes all windows
         // frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);      // closes only current window
         frame.setTitle("Standard Draw");
         frame.setJMenuBar(createMenuBar());
         frame.pack();
-        frame.requestFocusInWindow();
         frame.setVisible(true);
+
+        // the buffer strategy can only be created once the canvas is displayable
+        canvas.createBufferStrategy(2);
+        synchronized (blitLock) { strategy = canvas.getBufferStrategy(); }
+        canvas.requestFocus();
+        clear();
     }
 
     // create the menu bar (changed to private)
@@ -656,38 +717,55 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
     *  Drawing images.
     *************************************************************************/
 
+    /**
+     * Start loading images into the cache on a background thread, so that the
+     * first pictures drawn with them don't have to wait for them to decode.
+     * An image that is drawn while it is still loading waits for that load
+     * rather than starting another one. Does nothing if caching is off.
+     *
+     * @param filenames the names of the images
+     * @return completes once all the images are loaded, with the number that failed
+     */
+    public static Future<Integer> preloadImages(Collection<String> filenames) {
+        final List<String> files = new ArrayList<String>(filenames);
+        return preloader.submit(() -> {
+            int failed = 0;
+            for (String filename : files) {
+                if (!imageCaching)
+                    break;
+                try {
+                    getImage(filename);
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    failed++;
+                }
+            }
+            return failed;
+        });
+    }
+
     // get an image from the given filename
     private static Image getImage(String filename) {
-
-        Image result = null;
         if (imageCaching)
-            result = imageCache.get(filename);
-        
-        if (result == null)
-        {
-        // to read from file
-        ImageIcon icon = new ImageIcon(filename);
-
-        // try to read from URL
-        if ((icon == null) || (icon.getImageLoadStatus() != MediaTracker.COMPLETE)) {
-            try {
-                URL url = new URL(filename);
-                icon = new ImageIcon(url);
-            } catch (Exception e) { /* not a url */ }
-        }
-
-        // in case file is inside a .jar
-        if ((icon == null) || (icon.getImageLoadStatus() != MediaTracker.COMPLETE)) {
-            URL url = StdDraw.class.getResource(filename);
-            if (url == null) throw new IllegalArgumentException("image " + filename + " not found");
-            icon = new ImageIcon(url);
-        }
-            result = icon.getImage();
-            if (imageCaching)
-                imageCache.put(filename, result);
-        }
+            return imageCache.get(filename, StdDraw::loadImage);
+        return loadImage(filename);
+    }
 
-        return result;
+    // decode an image with ImageIO, from a file, a resource or a URL, and copy it
+    // into the screen's pixel layout so drawing it needs no conversion
+    private static BufferedImage loadImage(String filename) {
+        BufferedImage image = ImageCache.decode(filename);
+        if (GraphicsEnvironment.isHeadless())
+            return image;
+        GraphicsConfiguration config = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                                                          .getDefaultScreenDevice().getDefaultConfiguration();
+        if (image.getColorModel().equals(config.getColorModel(image.getTransparency())))
+            return image;
+        BufferedImage compatible = config.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+        Graphics2D g = compatible.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return compatible;
     }
 
     /**
@@ -815,6 +893,81 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
         draw();
     }
 
+    // get the digit strip for the given color, rendering it the first time it is asked for
+    private static BufferedImage getGlyphAtlas(Color color) {
+        BufferedImage atlas = glyphAtlas.get(color);
+        if (atlas != null) return atlas;
+
+        if (glyphWidth == 0) {
+            FontMetrics metrics = offscreen.getFontMetrics(GLYPH_FONT);
+            for (int i = 0; i < GLYPHS.length(); i++)
+                glyphWidth = Math.max(glyphWidth, metrics.charWidth(GLYPHS.charAt(i)));
+            glyphAscent  = metrics.getAscent();
+            glyphDescent = metrics.getDescent();
+            glyphHeight  = glyphAscent + glyphDescent;
+        }
+
+        atlas = offscreen.getDeviceConfiguration().createCompatibleImage(glyphWidth * GLYPHS.length(),
+                                                                        glyphHeight, Transparency.TRANSLUCENT);
+        Graphics2D g = atlas.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(GLYPH_FONT);
+        g.setColor(color);
+        FontMetrics metrics = g.getFontMetrics();
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            char c = GLYPHS.charAt(i);
+            g.drawString(String.valueOf(c), i * glyphWidth + (glyphWidth - metrics.charWidth(c)) / 2, glyphAscent);
+        }
+        g.dispose();
+        glyphAtlas.put(color, atlas);
+        return atlas;
+    }
+
+    /**
+     * Write an integer centered on (x, y) over a translucent black box, using a
+     * bold 14 point font. The digits are blitted from a cached atlas, so unlike
+     * text() this does not allocate and is cheap to call for many overlays per frame.
+     * @param x the center x-coordinate of the number
+     * @param y the center y-coordinate of the number
+     * @param value the number to write
+     * @param color the color of the digits
+     */
+    public static void number(double x, double y, int value, Color color) {
+        BufferedImage atlas = getGlyphAtlas(color);
+
+        // split into glyph indices, least significant digit first
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) v = -v;
+        int n = 0;
+        do {
+            glyphDigits[n++] = (int) (v % 10);
+            v /= 10;
+        } while (v > 0);
+        if (negative) glyphDigits[n++] = GLYPHS.length() - 1;
+
+        // background box, with font size 14 each digit is about 4.5 user units wide
+        double xs = scaleX(x);
+        double ys = scaleY(y);
+        double ws = factorX(2 * ((int) (n * 4.5) + 4));
+        double hs = factorY(2 * 8);
+        offscreen.setColor(GLYPH_BACKGROUND);
+        offscreen.fillRect((int) Math.round(xs - ws/2.0), (int) Math.round(ys - hs/2.0),
+                           (int) Math.round(ws), (int) Math.round(hs));
+        offscreen.setColor(penColor);
+
+        // digits, baseline placed the same way text() places it
+        int left = (int) Math.round(xs - n * glyphWidth / 2.0);
+        int top  = (int) Math.round(ys + glyphDescent - glyphAscent);
+        for (int i = n - 1; i >= 0; i--) {
+            int sx = glyphDigits[i] * glyphWidth;
+            offscreen.drawImage(atlas, left, top, left + glyphWidth, top + glyphHeight,
+                                       sx, 0, sx + glyphWidth, glyphHeight, null);
+            left += glyphWidth;
+        }
+        draw();
+    }
+
     /**
      * Write the given text string in the current font, centered on (x, y) and
      * rotated by the specified number of degrees  
@@ -901,8 +1054,25 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
     // draw onscreen if defer is false
     private static void draw() {
         if (defer) return;
-        onscreen.drawImage(offscreenImage, 0, 0, null);
-        frame.repaint();
+        blit();
+    }
+
+    // copy the offscreen image to the screen, from the drawing thread or from an AWT repaint
+    private static void blit() {
+        synchronized (blitLock) {
+            if (strategy == null) return;
+
+            // volatile buffers can be lost (e.g. on a display mode change), redo the frame until it sticks
+            do {
+                do {
+                    Graphics g = strategy.getDrawGraphics();
+                    g.drawImage(offscreenImage, 0, 0, null);
+                    g.dispose();
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+            Toolkit.getDefaultToolkit().sync();
+        }
     }
 
 
@@ -920,22 +1090,17 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
 
         // png files
         if (suffix.toLowerCase().equals("png")) {
-            try { ImageIO.write(onscreenImage, suffix, file); }
+            try { ImageIO.write(offscreenImage, suffix, file); }
             catch (IOException e) { e.printStackTrace(); }
         }
 
-        // need to change from ARGB to RGB for jpeg
-        // reference: http://archives.java.sun.com/cgi-bin/wa?A2=ind0404&L=java2d-interest&D=0&P=2727
+        // need to change from ARGB to RGB for jpeg, the accelerated image
+        // layout depends on the display so redraw it into a known one
         else if (suffix.toLowerCase().equals("jpg")) {
-            WritableRaster raster = onscreenImage.getRaster();
-            WritableRaster newRaster;
-            newRaster = raster.createWritableChild(0, 0, width, height, 0, 0, new int[] {0, 1, 2});
-            DirectColorModel cm = (DirectColorModel) onscreenImage.getColorModel();
-            DirectColorModel newCM = new DirectColorModel(cm.getPixelSize(),
-                                                          cm.getRedMask(),
-                                                          cm.getGreenMask(),
-                                                          cm.getBlueMask());
-            BufferedImage rgbBuffer = new BufferedImage(newCM, newRaster, false,  null);
+            BufferedImage rgbBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgbBuffer.createGraphics();
+            g.drawImage(offscreenImage, 0, 0, null);
+            g.dispose();
             try { ImageIO.write(rgbBuffer, suffix, file); }
             catch (IOException e) { e.printStackTrace(); }
         }
@@ -1054,14 +1219,20 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
     *  Keyboard interactions.
     *************************************************************************/
    
+    /**
+     * The keyboard state of the window, fed by the event dispatch thread
+     * @return the window's key input
+     */
+    public static KeyInput getKeyInput() {
+        return keys;
+    }
+
     /**
      * Has the user typed a key?
      * @return true if the user has typed a key, false otherwise
      */
     public static boolean hasNextKeyTyped() {
-        synchronized (keyLock) {
-            return !keysTyped.isEmpty();
-        }
+        return keys.hasNextKeyTyped();
     }
 
     /**
@@ -1072,9 +1243,24 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
      * @return the next Unicode key typed
      */
     public static char nextKeyTyped() {
-        synchronized (keyLock) {
-            return keysTyped.removeLast();
-        }
+        return keys.nextKeyTyped();
+    }
+
+    /**
+     * Sleep for up to the given time, returning early if a key is typed or
+     * pressed. Returns at once if a typed key is already waiting.
+     * @param nanos the longest time to sleep, in nanoseconds
+     */
+    public static void waitForInput(long nanos) {
+        keys.waitForInput(nanos);
+    }
+
+    /**
+     * When did the key last returned by <tt>nextKeyTyped()</tt> arrive?
+     * @return the arrival time, comparable with System.nanoTime()
+     */
+    public static long lastKeyTypedNanos() {
+        return keys.lastKeyTypedNanos();
     }
 
     /**
@@ -1086,9 +1272,7 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
      * @return true if keycode is currently being pressed, false otherwise
      */
     public static boolean isKeyPressed(int keycode) {
-        synchronized (keyLock) {
-            return keysDown.contains(keycode);
-        }
+        return keys.isKeyPressed(keycode);
     }
 
 
@@ -1096,27 +1280,21 @@ public final class StdDraw implements ActionListener, MouseListener, MouseMotion
      * This method cannot be called directly.
      */
     public void keyTyped(KeyEvent e) {
-        synchronized (keyLock) {
-            keysTyped.addFirst(e.getKeyChar());
-        }
+        keys.typed(e.getKeyChar());
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyPressed(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.add(e.getKeyCode());
-        }
+        keys.pressed(e.getKeyCode());
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyReleased(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.remove(e.getKeyCode());
-        }
+        keys.released(e.getKeyCode());
     }
     
     
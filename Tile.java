@@ -5,19 +5,18 @@
  * @author Michele Van Dyne - added commenting
  * @author Kris McCoy - altered TileType and removed opacity options
  *
+ * The kinds of tile and their properties come from TileTypes.
  */
 public class Tile {
-   public enum TileType {PATH, LAVA, WATER, BUSH, TOMBSTONE, GRASS, ROCK, STONEWALL, STONEWALLFRONT, CRATE}
    public static final int SIZE = 32;           // Size of a tile in pixels
-   public static final int TILE_DAMAGE = 2;     // If a TileType causes damage, how much damage it should cause
 
-   private TileType type;                       // Type of tile this is
+   private int type;                            // Type of tile this is, an id from TileTypes
    private boolean lit = false;                 // Is the tile currently illuminated?     
    private int x, y;
 
    /**
     * Constructor for the tile class
-    * converts a character from the file into our enumerated type
+    * looks up a code from the level file in TileTypes, unknown codes get the default type
     * @param code - letter code that determines the type of tile
     */
    public Tile(String code) {
@@ -26,26 +25,36 @@ public class Tile {
    
    /**
     * Constructor for the tile class
-    * converts a character from the file into our enumerated type
+    * looks up a code from the level file in TileTypes, unknown codes get the default type
     * @param code - letter code that determines the type of tile
     * @param x - horizontal location of this Tile within the matrix
     * @param y - vertical location of this Tile within the matrix
     */
    public Tile(String code, int x, int y) {
-      if      (code.equals("P"))  type = TileType.PATH;
-      else if (code.equals("L"))  type = TileType.LAVA;
-      else if (code.equals("W"))  type = TileType.WATER;
-      else if (code.equals("B"))  type = TileType.BUSH;
-      else if (code.equals("G"))  type = TileType.GRASS;
-      else if (code.equals("R"))  type = TileType.ROCK;
-      else if (code.equals("S"))  type = TileType.STONEWALL;
-      else if (code.equals("F"))  type = TileType.STONEWALLFRONT;
-      else if (code.equals("T"))  type = TileType.TOMBSTONE;
-      else if (code.equals("C"))  type = TileType.CRATE;
-      else type = TileType.GRASS; //default
+      type = TileTypes.forCode(code);
       this.x = x;
       this.y = y;
    }
+
+   /**
+    * Constructor for the tile class, from an already known type
+    * @param type - the id of the type of tile, from TileTypes
+    * @param x - horizontal location of this Tile within the matrix
+    * @param y - vertical location of this Tile within the matrix
+    */
+   public Tile(int type, int x, int y) {
+      this.type = type;
+      this.x = x;
+      this.y = y;
+   }
+
+   /**
+    * Get the type of this tile
+    * @return the id of the type, from TileTypes
+    */
+   public int getType() {
+      return type;
+   }
    
    public int getX() { 
       return x; 
@@ -75,23 +84,34 @@ public class Tile {
     * @return the damage caused
     */
    public int getDamage() {
-      if (type == TileType.LAVA)
-         return TILE_DAMAGE;
-      return 0;
+      return TileTypes.DAMAGE[type];
    }
 
    /**
     * Can the hero walk through this tile
     */
    public boolean isPassable() {      
-      switch (type) {
-         case PATH:
-         case GRASS:
-         case LAVA:
-            return true;   
-         default:    
-            return false;  
-      }       
+      return TileTypes.PASSABLE[type];
+   }
+
+   /**
+    * Does this tile stop light from spreading past it
+    */
+   public boolean isOpaque() {
+      return TileTypes.OPAQUE[type];
+   }
+
+   /**
+    * Tiles are the same if they are at the same location
+    */
+   @Override
+   public boolean equals(Object other) {
+      return (other instanceof Tile) && (((Tile) other).x == x) && (((Tile) other).y == y);
+   }
+
+   @Override
+   public int hashCode() {
+      return x * 31 + y;
    }
 
 public double getD(Tile s)
@@ -104,33 +124,34 @@ public double getD(Tile s)
     * @param y the y position of the tile
     */
    public void draw(int x, int y) {
-      double drawX = (x + 0.5 - World.offSetX) * Tile.SIZE;
-      double drawY = (y + 0.5 - World.offSetY) * Tile.SIZE;
+      draw(new Camera(), x, y, lit);
+   }
+
+   /**
+    * Draw the tile at the given location, lit or not
+    * @param camera the part of the world in view
+    * @param x the x position of the tile
+    * @param y the y position of the tile
+    * @param lit true to draw the tile, false to draw it blank
+    */
+   public void draw(Camera camera, int x, int y, boolean lit) {
+      draw(camera, type, x, y, lit);
+   }
+
+   /**
+    * Draw a tile of the given type at the given location, lit or not
+    * @param camera the part of the world in view
+    * @param type the id of the type of tile, from TileTypes
+    * @param x the x position of the tile
+    * @param y the y position of the tile
+    * @param lit true to draw the tile, false to draw it blank
+    */
+   public static void draw(Camera camera, int type, int x, int y, boolean lit) {
+      double drawX = camera.screenX(x);
+      double drawY = camera.screenY(y);
    
       if (lit) {
-         switch (type) {
-            case PATH:  StdDraw.picture(drawX, drawY, "img-path.png", Tile.SIZE, Tile.SIZE);    
-               break;
-            case LAVA:  StdDraw.picture(drawX, drawY, "img-lava.png", Tile.SIZE, Tile.SIZE);          
-               break;
-            case WATER: StdDraw.picture(drawX, drawY, "img-water.png", Tile.SIZE, Tile.SIZE);         
-               break;
-            case GRASS: StdDraw.picture(drawX, drawY, "img-grass.png", Tile.SIZE, Tile.SIZE);    
-               break;
-            case BUSH:  StdDraw.picture(drawX, drawY, "img-bush.png", Tile.SIZE, Tile.SIZE);        
-               break;
-            case ROCK: StdDraw.picture(drawX, drawY, "img-rock.png", Tile.SIZE, Tile.SIZE);     
-               break;
-            case STONEWALL: StdDraw.picture(drawX, drawY, "img-stonewall-top.png", Tile.SIZE, Tile.SIZE);     
-               break;
-            case STONEWALLFRONT: StdDraw.picture(drawX, drawY, "img-stonewall-front.png", Tile.SIZE, Tile.SIZE);     
-               break;
-            case TOMBSTONE: StdDraw.picture(drawX, drawY, "img-tombstone.png", Tile.SIZE, Tile.SIZE);     
-               break;
-            case CRATE: StdDraw.picture(drawX, drawY, "img-crate.png", Tile.SIZE, Tile.SIZE);     
-               break;
-            default: StdDraw.picture(drawX, drawY, "img-grass.png", Tile.SIZE, Tile.SIZE);                                         
-         }           
+         StdDraw.picture(drawX, drawY, TileTypes.SPRITES[TileTypes.SPRITE[type]], Tile.SIZE, Tile.SIZE);
       } else {
          StdDraw.picture(drawX, drawY, "img-blank.gif", Tile.SIZE, Tile.SIZE);     
       }
@@ -141,17 +162,16 @@ public double getD(Tile s)
     * Test main method to ensure tile methods are correct
     */
    public static void main(String[] args){      
-      final int WIDTH = 10;  
+      final int WIDTH = TileTypes.count();  
       final int HEIGHT = 2;
    
       StdDraw.setCanvasSize(WIDTH * SIZE, HEIGHT * SIZE);
       StdDraw.setXscale(0.0, WIDTH * SIZE);
       StdDraw.setYscale(0.0, HEIGHT * SIZE);
    
-      String [] codes = {"P", "B", "L", "W", "F", "G", "T", "S", "C", "R"};
       for (int i = 0; i < WIDTH; i++) {
          for (int j = 0; j < HEIGHT; j++) {
-            Tile tile = new Tile(codes[i]);
+            Tile tile = new Tile(TileTypes.getCode(i));
             if ((i + j) % 2 == 0)
                tile.setLit(true);
             System.out.printf("%d %d : lit %s  \tpassable %s\n", i, j, tile.getLit(), tile.isPassable()); 
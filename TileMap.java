@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The tiles of a world: the type of every tile, whether it is lit, and a
+ * byte of metadata per tile. Everything that reads the map, lighting, path
+ * finding and drawing, goes through here by (x, y) rather than through Tile
+ * objects, so how the map is stored can change without them knowing.
+ *
+ * Which storage a world uses is picked when its level is loaded, from the
+ * ultima.tilemap system property:
+ *    heap            - a buffer on the Java heap (the default)
+ *    offheap         - a direct buffer outside the heap, which the GC never marks
+ *    file:<path>     - a file mapped into memory, readable by other processes
+ *    rle             - rows packed into runs of the same type, for big outdoor levels;
+ *                      it makes small or busy maps bigger, see RunLengthTileMap
+ */
+public abstract class TileMap {
+   protected final int width;                   // width of the map in tiles
+   protected final int height;                  // height of the map in tiles
+
+   protected TileMap(int width, int height) {
+      this.width  = width;
+      this.height = height;
+   }
+
+   /**
+    * Make an empty map with the storage named by the ultima.tilemap property
+    * @param width  - width of the map in tiles
+    * @param height - height of the map in tiles
+    * @return the map, every tile of type 0 and unlit
+    */
+   public static TileMap create(int width, int height) {
+      String storage = System.getProperty("ultima.tilemap", "heap");
+      if (storage.equals("heap"))
+         return BufferTileMap.onHeap(width, height);
+      if (storage.equals("offheap"))
+         return BufferTileMap.offHeap(width, height);
+      if (storage.equals("rle"))
+         return new RunLengthTileMap(width, height);
+      if (storage.startsWith("file:")) {
+         Path file = Paths.get(storage.substring(5));
+         try {
+            return BufferTileMap.mapped(width, height, file);
+         } catch (IOException e) {
+            throw new IllegalArgumentException("can't map tile file " + file + ": " + e.getMessage(), e);
+         }
+      }
+      throw new IllegalArgumentException("unknown tile map storage: " + storage);
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /**
+    * Is (x, y) on the map
+    */
+   public boolean inBounds(int x, int y) {
+      return (x >= 0) && (y >= 0) && (x < width) && (y < height);
+   }
+
+   /**
+    * Called once every tile's type has been set while loading a level,
+    * before anything else reads the map
+    */
+   public void loaded() {
+   }
+
+   /**
+    * Get the type of the tile at (x, y)
+    * @return the id of the type, from TileTypes
+    */
+   public abstract int getType(int x, int y);
+
+   /**
+    * Set the type of the tile at (x, y). Different tiles may be set from different threads at once.
+    * @param type - the id of the type, from TileTypes
+    */
+   public abstract void setType(int x, int y, int type);
+
+   /**
+    * Is the tile at (x, y) currently lit
+    */
+   public abstract boolean isLit(int x, int y);
+
+   /**
+    * Light or darken the tile at (x, y)
+    */
+   public abstract void setLit(int x, int y, boolean lit);
+
+   /**
+    * Light or darken every tile
+    */
+   public abstract void setAllLit(boolean lit);
+
+   /**
+    * Copy the lit state of every tile, bit (x * height + y) set if lit
+    * @param words - where to copy it, at least (width * height + 63) / 64 long
+    */
+   public abstract void copyLit(long[] words);
+
+   /**
+    * Get the metadata byte of the tile at (x, y), 0 until it is set
+    */
+   public abstract int getMeta(int x, int y);
+
+   /**
+    * Set the metadata byte of the tile at (x, y)
+    * @param meta - the value, only the low 8 bits are kept
+    */
+   public abstract void setMeta(int x, int y, int meta);
+
+   /**
+    * How many bytes the map takes, on the heap or off it
+    */
+   public abstract long getBytes();
+
+   /**
+    * Can the hero walk through the tile at (x, y)
+    */
+   public boolean isPassable(int x, int y) {
+      return TileTypes.PASSABLE[getType(x, y)];
+   }
+
+   /**
+    * Get the amount of damage caused by standing on the tile at (x, y)
+    */
+   public int getDamage(int x, int y) {
+      return TileTypes.DAMAGE[getType(x, y)];
+   }
+
+   /**
+    * Does the tile at (x, y) stop light from spreading past it
+    */
+   public boolean isOpaque(int x, int y) {
+      return TileTypes.OPAQUE[getType(x, y)];
+   }
+
+   /**
+    * A Tile for the location (x, y), for handing a location and its type around
+    */
+   public Tile tileAt(int x, int y) {
+      return new Tile(getType(x, y), x, y);
+   }
+}
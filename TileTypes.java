@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * The kinds of tile, read from a definitions file when the game starts
+ * rather than written into the code. Each kind gets an id, its place in
+ * the file, and its properties are kept in flat arrays indexed by id, so
+ * asking whether a tile is passable is a single array read. A new kind of
+ * tile only needs a line in the file and a sprite.
+ *
+ * The file is tiles.txt, or the file named by the ultima.tiles system
+ * property. Each line gives a type's level code, name, whether it can be
+ * walked on, the damage it does, its sprite and whether it blocks light.
+ */
+public final class TileTypes {
+   public static final String FILE = System.getProperty("ultima.tiles", "tiles.txt");
+   public static final int MAX_TYPES = 256;     // ids are stored as a byte in checkpoints and view frames
+
+   private static final String[] CODES;         // level file code of each type
+   private static final String[] NAMES;         // name of each type
+   static final boolean[] PASSABLE;             // can be walked on, by type
+   static final int[] DAMAGE;                   // damage done to whoever stands on it, by type
+   static final int[] SPRITE;                   // sprite id, by type
+   static final boolean[] OPAQUE;               // stops light from spreading past it, by type
+   static final String[] SPRITES;               // image file of each sprite id
+
+   private static final Map<String, Integer> BY_CODE = new HashMap<>();
+   private static final int[] BY_CHAR = new int[128];    // type of each one letter code, -1 if none
+   private static final int DEFAULT_TYPE;       // type of codes the file doesn't list
+
+   static {
+      List<String[]> rows = new ArrayList<>();
+      String defaultCode = null;
+      try (Scanner scan = new Scanner(new File(FILE))) {
+         for (int line = 1; scan.hasNextLine(); line++) {
+            String text = scan.nextLine().trim();
+            if (text.isEmpty() || text.startsWith("#"))
+               continue;
+            String[] fields = text.split("\\s+");
+            if (fields[0].equals("default") && (fields.length == 2))
+               defaultCode = fields[1];
+            else if (fields.length == 6)
+               rows.add(fields);
+            else
+               throw new IllegalStateException(FILE + " line " + line + ": expected code, name, passable, damage, sprite, opaque");
+         }
+      } catch (FileNotFoundException e) {
+         throw new IllegalStateException("Failed to load tile definitions: " + FILE);
+      }
+      if (rows.isEmpty() || (rows.size() > MAX_TYPES))
+         throw new IllegalStateException(FILE + ": between 1 and " + MAX_TYPES + " tile types needed, found " + rows.size());
+   
+      int n = rows.size();
+      CODES    = new String[n];
+      NAMES    = new String[n];
+      PASSABLE = new boolean[n];
+      DAMAGE   = new int[n];
+      SPRITE   = new int[n];
+      OPAQUE   = new boolean[n];
+      List<String> sprites = new ArrayList<>();
+      for (int id = 0; id < n; id++) {
+         String[] row = rows.get(id);
+         CODES[id]    = row[0];
+         NAMES[id]    = row[1];
+         PASSABLE[id] = Boolean.parseBoolean(row[2]);
+         DAMAGE[id]   = Integer.parseInt(row[3]);
+         if (!sprites.contains(row[4]))
+            sprites.add(row[4]);
+         SPRITE[id]   = sprites.indexOf(row[4]);
+         OPAQUE[id]   = Boolean.parseBoolean(row[5]);
+         BY_CODE.put(row[0], id);
+      }
+      SPRITES = sprites.toArray(new String[0]);
+      Arrays.fill(BY_CHAR, -1);
+      for (int id = 0; id < n; id++) {
+         if ((CODES[id].length() == 1) && (CODES[id].charAt(0) < 128)) {
+            BY_CHAR[CODES[id].charAt(0)] = id;
+         }
+      }
+      Integer fallback = (defaultCode == null) ? null : BY_CODE.get(defaultCode);
+      DEFAULT_TYPE = (fallback == null) ? 0 : fallback;
+   }
+
+   private TileTypes() {
+   }
+
+   /**
+    * Number of tile types
+    */
+   public static int count() {
+      return CODES.length;
+   }
+
+   /**
+    * Convert the string code from a level file into a tile type
+    * @param code - the code, which must match the file's case
+    * @return the type's id, the default type if the code isn't known
+    */
+   public static int forCode(String code) {
+      Integer id = BY_CODE.get(code);
+      return (id == null) ? DEFAULT_TYPE : id;
+   }
+
+   /**
+    * Convert a one letter code from a level file into a tile type, without
+    * making a string of it
+    * @param code - the code, which must match the file's case
+    * @return the type's id, the default type if the code isn't known
+    */
+   public static int forCode(char code) {
+      int id = (code < 128) ? BY_CHAR[code] : -1;
+      return (id < 0) ? DEFAULT_TYPE : id;
+   }
+
+   /**
+    * Look up a tile type by name
+    * @param name - the name, as given in the definitions file
+    * @return the type's id, -1 if there is no such type
+    */
+   public static int forName(String name) {
+      for (int id = 0; id < NAMES.length; id++)
+         if (NAMES[id].equalsIgnoreCase(name))
+            return id;
+      return -1;
+   }
+
+   public static String getCode(int type) {
+      return CODES[type];
+   }
+
+   public static String getName(int type) {
+      return NAMES[type];
+   }
+
+   /**
+    * Test main method, lists the tile types read from the definitions file
+    */
+   public static void main(String[] args) {
+      System.out.printf("%d tile types from %s, %d sprites\n", count(), FILE, SPRITES.length);
+      for (int id = 0; id < count(); id++)
+         System.out.printf("%3d %-3s %-16s passable %-5s damage %d opaque %-5s %s\n", id, CODES[id], NAMES[id],
+                           PASSABLE[id], DAMAGE[id], OPAQUE[id], SPRITES[SPRITE[id]]);
+      System.out.println("unknown code X is " + getName(forCode("X")) + ", lower case p is " + getName(forCode('p')));
+   }
+}
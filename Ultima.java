@@ -9,25 +9,74 @@ public class Ultima {
 
    /**
     * The main method for the Ultima game loop
+    * @param args - optionally, a file to record the session to for Replay
     */
-   public static void main(String [] args)  {
+   public static void main(String [] args) throws java.io.IOException  {
       final String level = "40x40.txt"; //change level file here
-      final int SLEEP_MS = 100;         
+      final long FRAME_NANOS = 16000000L;   // don't redraw more often than this
    
+      final long launched = System.nanoTime();
       World world = new World(level);
       StdDraw.show(0);
       world.draw();
+      StdDraw.show(0);
+      System.out.printf("first frame after %.0f ms, level loaded in %.0f ms\n", 
+                        (System.nanoTime() - launched) / 1e6, world.getLoadNanos() / 1e6);
+   
+      // Game time runs from when the world was set up
+      final GameClock clock = world.getClock();
+      long drawnVersion = world.getVersion();
+      long drawnNanos   = 0;
    
-      // Keep looping as long as avatar hasn't died
+      // Record the session if asked, closing the log even if the window is closed
+      InputRecorder recorder = null;
+      if (args.length > 0) {
+         recorder = new InputRecorder(args[0], level, world.getSeed());
+         world.setRecorder(recorder);
+         final InputRecorder log = recorder;
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> log.close(clock.now())));
+      }
+      long now = 0;
+   
+      // Keep looping as long as avatar hasn't died, only doing work when
+      // input arrives, a monster is due to move or the screen needs redrawing
       while (world.avatarAlive() && world.getNumMonsters() > 0) {
-         //See if a move has been requested & process it
-         world.handleKeyPress();          
-         // Redraw everything and then sleep for a bit
-         StdDraw.clear();
-         world.draw();
-         StdDraw.show(SLEEP_MS);         
+         now = clock.now();
+      
+         //Move the monsters that are due, then see if a move has been requested & process it
+         world.moveMonsters(now);
+         world.handleKeyPress(now);          
+      
+         // Redraw if something changed, or a health display has just run out
+         long overlayExpires = world.getOverlayExpiresNanos();
+         boolean dirty = (world.getVersion() != drawnVersion) 
+                      || ((drawnNanos < overlayExpires) && (now >= overlayExpires));
+         long nextDraw = Long.MAX_VALUE;
+         if (dirty) {
+            if (now - drawnNanos >= FRAME_NANOS) {
+               drawnVersion = world.getVersion();
+               drawnNanos   = now;
+               world.publishSnapshot();
+               StdDraw.clear();
+               world.draw();
+               StdDraw.show(0);
+               if (drawnNanos < overlayExpires)
+                  nextDraw = overlayExpires;
+            } else {
+               nextDraw = drawnNanos + FRAME_NANOS;
+            }
+         } else if (drawnNanos < overlayExpires) {
+            nextDraw = overlayExpires;
+         }
+      
+         // Sleep until the next thing is due, key events wake us early
+         long wake = Math.min(nextDraw, Math.min(world.nextMonsterNanos(), world.nextInputNanos(now)));
+         clock.waitUntil(wake, world.getInput());
       }       
    
+      if (recorder != null)
+         recorder.close(now);
+   
       if (world.getNumMonsters() == 0) 
          System.out.println("You win!");
       else 
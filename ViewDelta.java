@@ -0,0 +1,378 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Delta encoding of ViewFrames for streaming to remote renderers. Each frame
+ * is numbered and encoded against the newest frame the client has
+ * acknowledged, sending only the tiles that scrolled into view, the lit
+ * tiles that changed (as runs of a bitmask), the avatar and the monsters
+ * that moved, changed or left the view. Frames with no acknowledged base,
+ * or where the delta would be bigger, are sent whole.
+ *
+ * An encoded frame is a frame number, the base frame number (0 for a whole
+ * frame) and then either ViewFrame.write() or the delta.
+ */
+public class ViewDelta {
+   private static final int HISTORY = 32;             // frames the encoder keeps as possible bases
+   private static final int DECODER_HISTORY = 64;     // frames the decoder keeps, more than the encoder might use
+
+   /**
+    * Encodes one client's frames, on one thread. Acknowledgements may come from another.
+    */
+   public static class Encoder {
+      private final ViewFrame[] sent = new ViewFrame[HISTORY];
+      private final int[] sentSeq = new int[HISTORY];
+      private final ByteBuffer scratch = ByteBuffer.allocate(65536);
+      private int seq = 0;                             // number of the last frame encoded
+      private volatile int ackedSeq = 0;               // newest frame the client has
+   
+      /**
+       * The client has received a frame
+       * @param seq - the frame number
+       */
+      public void ack(int seq) {
+         if (seq > ackedSeq)
+            ackedSeq = seq;
+      }
+   
+      /**
+       * Encode the next frame
+       * @param frame - the frame
+       * @param out   - where to write it, must have room for a whole frame plus 10 bytes
+       */
+      public void encode(ViewFrame frame, ByteBuffer out) {
+         seq++;
+         int baseSeq = ackedSeq;
+         ViewFrame base = null;
+         if ((baseSeq > 0) && (seq - baseSeq < HISTORY) && (sentSeq[baseSeq % HISTORY] == baseSeq))
+            base = sent[baseSeq % HISTORY];
+         sent[seq % HISTORY] = frame;
+         sentSeq[seq % HISTORY] = seq;
+      
+         putVarInt(out, seq);
+         if ((base != null) && (base.windowSizeX == frame.windowSizeX) && (base.windowSizeY == frame.windowSizeY)) {
+            scratch.clear();
+            writeDelta(base, frame, scratch);
+            if (scratch.position() < frame.encodedSize()) {
+               putVarInt(out, baseSeq);
+               scratch.flip();
+               out.put(scratch);
+               return;
+            }
+         }
+         putVarInt(out, 0);
+         frame.write(out);
+      }
+   }
+
+   /**
+    * Rebuilds frames from what an Encoder wrote, keeping recent frames as bases
+    */
+   public static class Decoder {
+      private final ViewFrame[] frames = new ViewFrame[DECODER_HISTORY];
+      private final int[] frameSeq = new int[DECODER_HISTORY];
+      private int lastSeq = 0;
+   
+      /**
+       * Decode one frame
+       * @param in - the encoded frame
+       * @return the frame
+       * @throws IllegalStateException if the frame's base has been forgotten
+       */
+      public ViewFrame decode(ByteBuffer in) {
+         int seq = getVarInt(in);
+         int baseSeq = getVarInt(in);
+         ViewFrame frame;
+         if (baseSeq == 0) {
+            frame = ViewFrame.read(in);
+         } else {
+            if (frameSeq[baseSeq % DECODER_HISTORY] != baseSeq)
+               throw new IllegalStateException("frame " + seq + " needs frame " + baseSeq + " which is gone");
+            frame = readDelta(frames[baseSeq % DECODER_HISTORY], in);
+         }
+         frames[seq % DECODER_HISTORY] = frame;
+         frameSeq[seq % DECODER_HISTORY] = seq;
+         lastSeq = seq;
+         return frame;
+      }
+   
+      /**
+       * The number of the last frame decoded, to acknowledge
+       */
+      public int getLastSeq() {
+         return lastSeq;
+      }
+   }
+
+   /**
+    * Write the difference between two frames with the same window size
+    * @param base - the frame the reader already has
+    * @param next - the frame to send
+    * @param out  - where to write it
+    */
+   static void writeDelta(ViewFrame base, ViewFrame next, ByteBuffer out) {
+      int cells = next.tiles.length;
+      out.putShort((short) next.offSetX);
+      out.putShort((short) next.offSetY);
+   
+      // Tiles and lit flags are compared at the same world location, so
+      // scrolling only sends the tiles that came into view
+      long[] changed = new long[(cells + 63) >>> 6];
+      long[] litFlips = new long[(cells + 63) >>> 6];
+      int numChanged = 0;
+      int dx = next.offSetX - base.offSetX;
+      int dy = next.offSetY - base.offSetY;
+      for (int x = 0; x < next.windowSizeX; x++) {
+         for (int y = 0; y < next.windowSizeY; y++) {
+            int bit = x * next.windowSizeY + y;
+            int bx = x + dx;
+            int by = y + dy;
+            boolean inBase = (bx >= 0) && (by >= 0) && (bx < base.windowSizeX) && (by < base.windowSizeY);
+            if (!inBase || (base.tiles[bx * base.windowSizeY + by] != next.tiles[bit])) {
+               changed[bit >>> 6] |= 1L << bit;
+               numChanged++;
+            }
+            if (next.isLit(x, y) != (inBase && base.isLit(bx, by)))
+               litFlips[bit >>> 6] |= 1L << bit;
+         }
+      }
+      putRuns(out, changed, cells);
+      for (int bit = 0; bit < cells; bit++)
+         if ((changed[bit >>> 6] & (1L << bit)) != 0)
+            out.put(next.tiles[bit]);
+      putRuns(out, litFlips, cells);
+   
+      putVarInt(out, zigZag(next.avatarX - base.avatarX));
+      putVarInt(out, zigZag(next.avatarY - base.avatarY));
+      putVarInt(out, zigZag(next.avatarHp - base.avatarHp));
+      out.put(next.avatarFacing);
+   
+      // Both monster lists are in order of id, merge them
+      int numGone = 0, numMoved = 0;
+      int[] gone = new int[base.numMonsters];
+      int[] moved = new int[next.numMonsters];
+      int i = 0, j = 0;
+      while ((i < base.numMonsters) || (j < next.numMonsters)) {
+         if ((j == next.numMonsters) || ((i < base.numMonsters) && (base.monsterId[i] < next.monsterId[j]))) {
+            gone[numGone++] = base.monsterId[i++];
+         } else if ((i == base.numMonsters) || (next.monsterId[j] < base.monsterId[i])) {
+            moved[numMoved++] = j++;
+         } else {
+            if ((base.monsterX[i] != next.monsterX[j]) || (base.monsterY[i] != next.monsterY[j]) 
+             || (base.monsterHp[i] != next.monsterHp[j]) || (base.monsterType[i] != next.monsterType[j]))
+               moved[numMoved++] = j;
+            i++;
+            j++;
+         }
+      }
+      putVarInt(out, numGone);
+      for (int k = 0; k < numGone; k++)
+         putVarInt(out, gone[k]);
+      putVarInt(out, numMoved);
+      for (int k = 0; k < numMoved; k++) {
+         int m = moved[k];
+         putVarInt(out, next.monsterId[m]);
+         out.putShort((short) next.monsterX[m]);
+         out.putShort((short) next.monsterY[m]);
+         putVarInt(out, next.monsterHp[m]);
+         out.put(next.monsterType[m]);
+      }
+   }
+
+   /**
+    * Rebuild a frame from its base and what writeDelta wrote
+    * @param base - the frame the delta was taken against
+    * @param in   - the delta
+    * @return the new frame
+    */
+   static ViewFrame readDelta(ViewFrame base, ByteBuffer in) {
+      int windowSizeX = base.windowSizeX;
+      int windowSizeY = base.windowSizeY;
+      int cells = windowSizeX * windowSizeY;
+      int offSetX = in.getShort();
+      int offSetY = in.getShort();
+      int dx = offSetX - base.offSetX;
+      int dy = offSetY - base.offSetY;
+   
+      long[] changed = getRuns(in, cells);
+      byte[] tiles = new byte[cells];
+      long[] lit = new long[(cells + 63) >>> 6];
+      for (int x = 0; x < windowSizeX; x++) {
+         for (int y = 0; y < windowSizeY; y++) {
+            int bit = x * windowSizeY + y;
+            int bx = x + dx;
+            int by = y + dy;
+            boolean inBase = (bx >= 0) && (by >= 0) && (bx < windowSizeX) && (by < windowSizeY);
+            if (inBase) {
+               tiles[bit] = base.tiles[bx * windowSizeY + by];
+               if (base.isLit(bx, by))
+                  lit[bit >>> 6] |= 1L << bit;
+            }
+         }
+      }
+      for (int bit = 0; bit < cells; bit++)
+         if ((changed[bit >>> 6] & (1L << bit)) != 0)
+            tiles[bit] = in.get();
+      long[] litFlips = getRuns(in, cells);
+      for (int w = 0; w < lit.length; w++)
+         lit[w] ^= litFlips[w];
+   
+      int avatarX  = base.avatarX + unZigZag(getVarInt(in));
+      int avatarY  = base.avatarY + unZigZag(getVarInt(in));
+      int avatarHp = base.avatarHp + unZigZag(getVarInt(in));
+      byte avatarFacing = in.get();
+   
+      int[] gone = new int[getVarInt(in)];
+      for (int k = 0; k < gone.length; k++)
+         gone[k] = getVarInt(in);
+      ViewFrame moved = new ViewFrame(0, 0, getVarInt(in));
+      for (int k = 0; k < moved.numMonsters; k++) {
+         moved.monsterId[k]   = getVarInt(in);
+         moved.monsterX[k]    = in.getShort();
+         moved.monsterY[k]    = in.getShort();
+         moved.monsterHp[k]   = getVarInt(in);
+         moved.monsterType[k] = in.get();
+      }
+   
+      ViewFrame frame = new ViewFrame(windowSizeX, windowSizeY, base.numMonsters + moved.numMonsters);
+      frame.offSetX = offSetX;
+      frame.offSetY = offSetY;
+      frame.tiles = tiles;
+      frame.lit = lit;
+      frame.avatarX = avatarX;
+      frame.avatarY = avatarY;
+      frame.avatarHp = avatarHp;
+      frame.avatarFacing = avatarFacing;
+   
+      // Merge the base's monsters with the moved ones, dropping the gone ones, all in order of id
+      int n = 0, i = 0, j = 0, g = 0;
+      while ((i < base.numMonsters) || (j < moved.numMonsters)) {
+         if ((j == moved.numMonsters) || ((i < base.numMonsters) && (base.monsterId[i] < moved.monsterId[j]))) {
+            while ((g < gone.length) && (gone[g] < base.monsterId[i]))
+               g++;
+            if ((g < gone.length) && (gone[g] == base.monsterId[i]))
+               i++;
+            else
+               frame.copyMonster(base, i++, n++);
+         } else {
+            if ((i < base.numMonsters) && (base.monsterId[i] == moved.monsterId[j]))
+               i++;
+            frame.copyMonster(moved, j++, n++);
+         }
+      }
+      frame.numMonsters = n;
+      return frame;
+   }
+
+   // Write a bitmask as alternating run lengths, starting with a run of clear bits
+   private static void putRuns(ByteBuffer out, long[] mask, int bits) {
+      boolean set = false;
+      int run = 0;
+      for (int bit = 0; bit < bits; bit++) {
+         if (((mask[bit >>> 6] & (1L << bit)) != 0) != set) {
+            putVarInt(out, run);
+            set = !set;
+            run = 0;
+         }
+         run++;
+      }
+      putVarInt(out, run);
+   }
+
+   private static long[] getRuns(ByteBuffer in, int bits) {
+      long[] mask = new long[(bits + 63) >>> 6];
+      boolean set = false;
+      int bit = 0;
+      while (bit < bits) {
+         int run = getVarInt(in);
+         if (set)
+            for (int k = bit; k < bit + run; k++)
+               mask[k >>> 6] |= 1L << k;
+         bit += run;
+         set = !set;
+      }
+      return mask;
+   }
+
+   private static int zigZag(int n) {
+      return (n << 1) ^ (n >> 31);
+   }
+
+   private static int unZigZag(int n) {
+      return (n >>> 1) ^ -(n & 1);
+   }
+
+   /**
+    * Write a non-negative number seven bits at a time, low bits first
+    */
+   static void putVarInt(ByteBuffer out, int value) {
+      while ((value & ~0x7F) != 0) {
+         out.put((byte) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.put((byte) value);
+   }
+
+   /**
+    * Read a number written by putVarInt
+    */
+   static int getVarInt(ByteBuffer in) {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+         int b = in.get();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new IllegalArgumentException("malformed number");
+   }
+
+   /**
+    * Benchmark, plays a headless world with random keys and reports how big
+    * whole and delta frames are and how long they take to encode, checking
+    * every decoded frame matches. Arguments: [level] [frames]
+    */
+   public static void main(String[] args) {
+      String level = (args.length > 0) ? args[0] : "40x40.txt";
+      int numFrames = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+      World world = new World(level, 42, false);
+      Random random = new Random(7);
+      char[] keys = {'w', 'a', 's', 'd', 'q', '+', '-'};
+   
+      // Capture the frames first, so only encoding is timed
+      ViewFrame[] frames = new ViewFrame[numFrames];
+      long now = 0;
+      for (int f = 0; f < numFrames; f++) {
+         now += 50000000L;
+         world.moveMonsters(now);
+         if (random.nextInt(3) == 0)
+            world.handleKey(keys[random.nextInt(keys.length)]);
+         world.publishSnapshot();
+         frames[f] = ViewFrame.capture(world, world.getSnapshot());
+      }
+   
+      ByteBuffer out = ByteBuffer.allocate(65536);
+      for (int pass = 0; pass < 3; pass++) {
+         Encoder encoder = new Encoder();
+         Decoder decoder = new Decoder();
+         long fullBytes = 0, deltaBytes = 0, encodeNanos = 0;
+         for (int f = 0; f < numFrames; f++) {
+            out.clear();
+            long start = System.nanoTime();
+            encoder.encode(frames[f], out);
+            encodeNanos += System.nanoTime() - start;
+            deltaBytes += out.position();
+            fullBytes += frames[f].encodedSize();
+         
+            out.flip();
+            ViewFrame decoded = decoder.decode(out);
+            if (!decoded.sameAs(frames[f]))
+               throw new IllegalStateException("frame " + f + " decoded differently");
+            encoder.ack(decoder.getLastSeq());
+         }
+         System.out.printf("%d frames: whole %.1f bytes/frame, delta %.1f bytes/frame (%.1f%%), encode %.2f us/frame\n",
+                           numFrames, fullBytes / (double) numFrames, deltaBytes / (double) numFrames,
+                           100.0 * deltaBytes / fullBytes, encodeNanos / 1000.0 / numFrames);
+      }
+   }
+}
@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * What a player sees of a World: the window of tiles around the avatar,
+ * which of them are lit, the avatar and the monsters drawn in the window.
+ * The window is placed the same way World.draw places it, so a remote
+ * renderer can draw a frame exactly as the local one would.
+ */
+public class ViewFrame {
+   int offSetX, offSetY;              // world location of the bottom left tile in view
+   int windowSizeX, windowSizeY;      // size of the window in tiles
+   byte[] tiles;                      // tile type id of window tile (x * windowSizeY + y)
+   long[] lit;                        // bit (x * windowSizeY + y) set if that window tile is lit
+   int avatarX, avatarY, avatarHp;
+   byte avatarFacing;                 // Avatar.Facing ordinal
+   int numMonsters;                   // monsters drawn in the window, in order of id
+   int[] monsterId;                   // monster handles, so a monster can be followed between frames
+   int[] monsterX, monsterY, monsterHp;
+   byte[] monsterType;                // MonsterType ordinal
+
+   ViewFrame(int windowSizeX, int windowSizeY, int numMonsters) {
+      this.windowSizeX = windowSizeX;
+      this.windowSizeY = windowSizeY;
+      this.numMonsters = numMonsters;
+      tiles       = new byte[windowSizeX * windowSizeY];
+      lit         = new long[(tiles.length + 63) >>> 6];
+      monsterId   = new int[numMonsters];
+      monsterX    = new int[numMonsters];
+      monsterY    = new int[numMonsters];
+      monsterHp   = new int[numMonsters];
+      monsterType = new byte[numMonsters];
+   }
+
+   /**
+    * Capture the view of a world as of a snapshot
+    * @param world - the world, for its tiles and window size
+    * @param snap  - the snapshot to take the changing state from
+    * @return the frame
+    */
+   public static ViewFrame capture(World world, WorldSnapshot snap) {
+      Camera camera = new Camera();
+      camera.follow(snap.getAvatarX(), snap.getAvatarY(), world.getWidth(), world.getHeight(), 
+                    world.getWindowSizeX(), world.getWindowSizeY());
+      int offSetX = camera.getOffSetX();
+      int offSetY = camera.getOffSetY();
+      int windowSizeX = world.getWindowSizeX();
+      int windowSizeY = world.getWindowSizeY();
+   
+      // The monsters World.draw would draw, found through the snapshot's spatial query
+      IntStream.Builder found = IntStream.builder();
+      snap.forEachMonsterIn(offSetX, offSetY, offSetX + windowSizeX - 1, offSetY + windowSizeY - 1, i -> {
+         if (inView(snap, i))
+            found.add(i);
+      });
+      int[] shown = found.build().toArray();
+   
+      ViewFrame frame = new ViewFrame(windowSizeX, windowSizeY, shown.length);
+      frame.offSetX = offSetX;
+      frame.offSetY = offSetY;
+      TileMap tiles = world.getTileMap();
+      for (int x = 0; x < windowSizeX; x++) {
+         for (int y = 0; y < windowSizeY; y++) {
+            int bit = x * windowSizeY + y;
+            frame.tiles[bit] = (byte) tiles.getType(x + offSetX, y + offSetY);
+            if (snap.isLit(x + offSetX, y + offSetY))
+               frame.lit[bit >>> 6] |= 1L << bit;
+         }
+      }
+      frame.avatarX      = snap.getAvatarX();
+      frame.avatarY      = snap.getAvatarY();
+      frame.avatarHp     = snap.getAvatarHitPoints();
+      frame.avatarFacing = (byte) snap.getAvatarFacing().ordinal();
+   
+      // Insert each monster in order of id, there are only ever a handful in view
+      int n = 0;
+      for (int i : shown) {
+         int id = snap.getMonsterHandle(i);
+         int j = n++;
+         for (; (j > 0) && (frame.monsterId[j - 1] > id); j--)
+            frame.copyMonster(frame, j - 1, j);
+         frame.monsterId[j]   = id;
+         frame.monsterX[j]    = snap.getMonsterX(i);
+         frame.monsterY[j]    = snap.getMonsterY(i);
+         frame.monsterHp[j]   = snap.getMonsterHitPoints(i);
+         frame.monsterType[j] = (byte) snap.getMonsterType(i).ordinal();
+      }
+      return frame;
+   }
+
+   /**
+    * Copy monster i of a frame into slot j of this one
+    */
+   void copyMonster(ViewFrame from, int i, int j) {
+      monsterId[j]   = from.monsterId[i];
+      monsterX[j]    = from.monsterX[i];
+      monsterY[j]    = from.monsterY[i];
+      monsterHp[j]   = from.monsterHp[i];
+      monsterType[j] = from.monsterType[i];
+   }
+
+   // Living and lit, the spatial query has already checked it is inside the window
+   private static boolean inView(WorldSnapshot snap, int i) {
+      return (snap.getMonsterHitPoints(i) > 0) && snap.isLit(snap.getMonsterX(i), snap.getMonsterY(i));
+   }
+
+   /**
+    * Is a window tile lit
+    * @param x - x location within the window
+    * @param y - y location within the window
+    * @return true if lit, false otherwise
+    */
+   public boolean isLit(int x, int y) {
+      int bit = x * windowSizeY + y;
+      return (lit[bit >>> 6] & (1L << bit)) != 0;
+   }
+
+   /**
+    * How many bytes write() will use
+    */
+   public int encodedSize() {
+      return 6 + tiles.length + ((tiles.length + 7) >>> 3) + 7 + 2 + 11 * numMonsters;
+   }
+
+   /**
+    * Write the whole frame. Locations and hit points are sent as 16 bits.
+    * @param out - where to write it
+    */
+   public void write(ByteBuffer out) {
+      out.putShort((short) offSetX);
+      out.putShort((short) offSetY);
+      out.put((byte) windowSizeX);
+      out.put((byte) windowSizeY);
+      out.put(tiles);
+      for (int i = 0; i < (tiles.length + 7) >>> 3; i++)
+         out.put((byte) (lit[i >>> 3] >>> ((i & 7) << 3)));
+      out.putShort((short) avatarX);
+      out.putShort((short) avatarY);
+      out.putShort((short) avatarHp);
+      out.put(avatarFacing);
+      out.putShort((short) numMonsters);
+      for (int i = 0; i < numMonsters; i++) {
+         out.putInt(monsterId[i]);
+         out.putShort((short) monsterX[i]);
+         out.putShort((short) monsterY[i]);
+         out.putShort((short) monsterHp[i]);
+         out.put(monsterType[i]);
+      }
+   }
+
+   /**
+    * Read a frame written by write()
+    * @param in - where to read it from
+    * @return the frame
+    */
+   public static ViewFrame read(ByteBuffer in) {
+      int offSetX = in.getShort();
+      int offSetY = in.getShort();
+      int windowSizeX = in.get() & 0xFF;
+      int windowSizeY = in.get() & 0xFF;
+      byte[] tiles = new byte[windowSizeX * windowSizeY];
+      in.get(tiles);
+      long[] lit = new long[(tiles.length + 63) >>> 6];
+      for (int i = 0; i < (tiles.length + 7) >>> 3; i++)
+         lit[i >>> 3] |= (in.get() & 0xFFL) << ((i & 7) << 3);
+      int avatarX  = in.getShort();
+      int avatarY  = in.getShort();
+      int avatarHp = in.getShort();
+      byte avatarFacing = in.get();
+      int n = in.getShort() & 0xFFFF;
+   
+      ViewFrame frame = new ViewFrame(windowSizeX, windowSizeY, n);
+      frame.offSetX = offSetX;
+      frame.offSetY = offSetY;
+      frame.tiles = tiles;
+      frame.lit = lit;
+      frame.avatarX = avatarX;
+      frame.avatarY = avatarY;
+      frame.avatarHp = avatarHp;
+      frame.avatarFacing = avatarFacing;
+      for (int i = 0; i < n; i++) {
+         frame.monsterId[i]   = in.getInt();
+         frame.monsterX[i]    = in.getShort();
+         frame.monsterY[i]    = in.getShort();
+         frame.monsterHp[i]   = in.getShort();
+         frame.monsterType[i] = in.get();
+      }
+      return frame;
+   }
+
+   /**
+    * Do two frames draw the same picture
+    * @param other - the frame to compare with
+    * @return true if everything in them matches
+    */
+   public boolean sameAs(ViewFrame other) {
+      return (offSetX == other.offSetX) && (offSetY == other.offSetY)
+          && (windowSizeX == other.windowSizeX) && (windowSizeY == other.windowSizeY)
+          && Arrays.equals(tiles, other.tiles) && Arrays.equals(lit, other.lit)
+          && (avatarX == other.avatarX) && (avatarY == other.avatarY) && (avatarHp == other.avatarHp)
+          && (avatarFacing == other.avatarFacing) && (numMonsters == other.numMonsters)
+          && Arrays.equals(monsterId, 0, numMonsters, other.monsterId, 0, numMonsters)
+          && Arrays.equals(monsterX, 0, numMonsters, other.monsterX, 0, numMonsters)
+          && Arrays.equals(monsterY, 0, numMonsters, other.monsterY, 0, numMonsters)
+          && Arrays.equals(monsterHp, 0, numMonsters, other.monsterHp, 0, numMonsters)
+          && Arrays.equals(monsterType, 0, numMonsters, other.monsterType, 0, numMonsters);
+   }
+}
@@ -1,5 +1,9 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.stream.IntStream;
 
 /**
  * Class to set up the world for game play in Ultima
@@ -12,11 +16,13 @@ import java.io.*;
  *
  */
 public class World {
-   public static int offSetX = 0;            
-   public static int offSetY = 0;
    public final static double DISPLAY_DAMAGE_SEC = 1.0;    // How long to display health after damage     
+   public final static int INPUT_REPEAT_MS = 100;          // Least time between two avatar actions
+   private final static char[] KEY_OPTIONS = {'w','W','a','A','s','S','d','D','-','+','=','q','Q'};
+   private final static int PLAN_CHUNK = 64;               // Monsters planned by one fork/join task
+   private final static int LOAD_BAND_BYTES = 1 << 16;     // Least size of a band of the level file parsed at once
 
-   private Tile [][] tiles     = null;         // Stores all the tiles in a 2D array
+   private TileMap tiles       = null;         // Stores all the tiles, in the storage picked at load
    private int width           = 0;            // Stores the width, first dimension in array
    private int height          = 0;            // Stores the height, second dimension in array
    private Avatar avatar       = null;         // Where the player is
@@ -25,68 +31,260 @@ public class World {
    private int preferredWindowSizeY = 20;
    private int windowSizeX;
    private int windowSizeY;
+   private final Camera camera = new Camera();  // Which part of the world is in view
+   private final KeyInput input;               // Keys for this world, the window's if it has one
    
 
-   private ArrayList<Monster> monsters = new ArrayList<Monster>();     // Holds the monster objects
+   private MonsterStore monsters;                                      // Holds the monster state, guarded by the World lock
+   private volatile WorldSnapshot snapshot = null;                     // Last published state, read without locking
+   private MonsterScheduler scheduler = new MonsterScheduler();        // When each monster moves next
+   private Monster[] batch = new Monster[16];                          // Monsters moving in the current round
+   private long[] batchDue = new long[16];                             // When each of them was due
+   private Tile[] batchPlans = new Tile[16];                           // Where each of them wants to go
+   private int activationRadius;                                       // Monsters further from the avatar than this go dormant
+   private volatile PathGraph paths = null;                            // Cluster graph for long chases, once it has been built
+   private CompletableFuture<PathGraph> pathsBuilding = null;          // The cluster graph being built after loading
+
+   private volatile long version = 0;          // Bumped on every change that affects drawing
+   private volatile long overlayExpiresNanos;  // When the last health display should disappear
+   private long nextInputNanos = 0;            // Earliest time the avatar may act again
+   private long time = 0;                      // Game time in nanoseconds since the world was loaded
+
+   private final long seed;                    // Seed for all the world's randomness
+   private long loadNanos = 0;                 // How long loading the level took
+   private InputRecorder recorder = null;      // Where avatar actions are logged, if anywhere
+   private final GameClock clock;              // Where game time comes from
    
    /**
-    * Constructor for the world class
+    * Constructor for the world class, opening a window with a randomly seeded world
     * @param filename - the String name of a file that will hold the configuration parameters for the world
     */
-    
-   
-    
    public World(String filename)
    {
+      this(filename, System.nanoTime(), true);
+   }
+
+   /**
+    * Constructor for the world class. Given the same seed and the same avatar
+    * actions at the same game times, a world always plays out the same way.
+    * @param filename - the String name of a file that will hold the configuration parameters for the world
+    * @param seed     - seed for the world's randomness
+    * @param window   - true to open a window for drawing, false to run headless
+    */
+   public World(String filename, long seed, boolean window)
+   {
+      this(filename, seed, window, new GameClock.RealTime());
+   }
+
+   /**
+    * Constructor for the world class, on a given game clock. A virtual clock
+    * lets a headless world play as fast as the moves can be worked out.
+    * @param filename - the String name of a file that will hold the configuration parameters for the world
+    * @param seed     - seed for the world's randomness
+    * @param window   - true to open a window for drawing, false to run headless
+    * @param clock    - where game time comes from
+    */
+   public World(String filename, long seed, boolean window, GameClock clock)
+   {
+      this.seed     = seed;
+      this.clock    = clock;
+      this.monsters = new MonsterStore(this, seed);
+      this.input    = window ? StdDraw.getKeyInput() : new KeyInput();
+   
+      long loadStart = System.nanoTime();
+   
+      // Decode the sprites while the level is parsed, so the first frames don't wait on them
+      if (window)
+         StdDraw.preloadImages(spriteFiles());
+   
       try
       {
-         Scanner scan = new Scanner(new File(filename));
+         LevelText level = new LevelText(Files.readAllBytes(new File(filename).toPath()));
       
          // First two lines specify the size of the world
-         width   = scan.nextInt();
-         height  = scan.nextInt();
+         width   = level.nextInt();
+         height  = level.nextInt();
       
          windowSizeX = Math.min(preferredWindowSizeX, width);
          windowSizeY = Math.min(preferredWindowSizeY, height);
+         monsters.setBounds(width, height);
       
          // Read in the avatar data from file
-         avatar = new Avatar(scan.nextInt(),         // x-position 
-            scan.nextInt(),         // y-position
-            scan.nextInt(),         // hit points
-            scan.nextInt(),         // damage
-            scan.nextDouble());     // torch radius
+         avatar = new Avatar(level.nextInt(),         // x-position 
+            level.nextInt(),         // y-position
+            level.nextInt(),         // hit points
+            level.nextInt(),         // damage
+            level.nextDouble(),      // torch radius
+            clock);
       
-         tiles = new Tile[width][height];
-      
-         // Read in the map tiles from file
-         for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {                   
-               String code = scan.next();
-               tiles[j][height - i - 1] = new Tile(code, j, height - i - 1);
-            }
-         }
+         // Read in the map tiles from file, in bands of rows at once
+         tiles = TileMap.create(width, height);
+         level.skipTo(parseTiles(level.text, level.pos));
+         tiles.loaded();
       
          // Read in the monsters from file
-         while (scan.hasNext()) {
-            Monster monster = new Monster(
-                   this,                 // reference to the World object
-                   scan.next(),          // code for type of monster
-                   scan.nextInt(),       // x-location
-                   scan.nextInt(),       // y-location
-                   scan.nextInt(),       // hit points
-                   scan.nextInt(),       // damage points
-                   scan.nextInt(),       // sleep ms
-                   scan.next(),          // code for type of movement
-                   scan.nextInt()        // aggroRadius
+         while (level.hasNext()) {
+            monsters.add(
+                   Monster.parseType(level.next()),       // code for type of monster
+                   level.nextInt(),       // x-location
+                   level.nextInt(),       // y-location
+                   level.nextInt(),       // hit points
+                   level.nextInt(),       // damage points
+                   level.nextInt(),       // sleep ms
+                   Monster.parseMoveType(level.next()),   // code for type of movement
+                   level.nextInt()        // aggroRadius
                    );      
-            monsters.add(monster);
          }
-         scan.close();
-      } catch (FileNotFoundException e) {
+      } catch (IOException e) {
          System.out.println("Failed to load file: " + filename);
       }
    
-      // Set up the drawing canvas size  
+      // The cluster graph is only needed once monsters start moving, so it is built
+      // in the background while the first frame is drawn
+      if (tiles != null) {
+         final TileMap map = tiles;
+         pathsBuilding = CompletableFuture.supplyAsync(() -> new PathGraph(map));
+      }
+
+      // Monsters wake within a whole window of the avatar, or further if they can sense it from further
+      activationRadius = Math.max(windowSizeX, windowSizeY);
+      for (int i = 0; i < monsters.size(); i++)
+         activationRadius = Math.max(activationRadius, monsters.getAggroRadius(i));
+   
+      // Initial lighting
+      light(avatar.getX(), avatar.getY(), avatar.getTorchRadius());
+      publishSnapshot();
+   
+      // Every monster makes its first move right away
+      for (int i = 0; i < monsters.size(); i++)
+         scheduler.schedule(0, new Monster(monsters, monsters.handleAt(i)));
+   
+      if (window)
+         openWindow();
+      loadNanos = System.nanoTime() - loadStart;
+   }
+
+   // Every image drawing the world can use
+   private static List<String> spriteFiles() {
+      List<String> files = new ArrayList<>(Arrays.asList(TileTypes.SPRITES));
+      files.addAll(Arrays.asList(Monster.SPRITES));
+      files.addAll(Arrays.asList(Avatar.SPRITES));
+      return files;
+   }
+
+   /**
+    * Tokens of a level file, read straight from its bytes
+    */
+   private static class LevelText {
+      private final byte[] text;
+      private int pos = 0;
+   
+      private LevelText(byte[] text) {
+         this.text = text;
+      }
+   
+      private boolean hasNext() {
+         while ((pos < text.length) && (text[pos] <= ' '))
+            pos++;
+         return pos < text.length;
+      }
+   
+      private String next() {
+         if (!hasNext())
+            throw new NoSuchElementException("level file ends early");
+         int start = pos;
+         while ((pos < text.length) && (text[pos] > ' '))
+            pos++;
+         return new String(text, start, pos - start, StandardCharsets.US_ASCII);
+      }
+   
+      private int nextInt() {
+         if (!hasNext())
+            throw new NoSuchElementException("level file ends early");
+         int start = pos;
+         boolean negative = (text[pos] == '-');
+         if (negative)
+            pos++;
+         long value = 0;
+         while ((pos < text.length) && (text[pos] >= '0') && (text[pos] <= '9') && (value <= Integer.MAX_VALUE))
+            value = value * 10 + (text[pos++] - '0');
+         if (((pos < text.length) && (text[pos] > ' ')) || (pos == start + (negative ? 1 : 0)) || (value > Integer.MAX_VALUE)) {
+            pos = start;
+            return Integer.parseInt(next());        // not a plain number, let parseInt say what is wrong
+         }
+         return negative ? (int) -value : (int) value;
+      }
+   
+      private double nextDouble() {
+         return Double.parseDouble(next());
+      }
+   
+      private void skipTo(int position) {
+         pos = position;
+      }
+   }
+
+   // Parse the width * height tile codes starting at pos, cutting the text into
+   // bands that are parsed at once on the common pool. A first pass counts the
+   // codes starting in each band, so each band knows which tile its first code is.
+   // Returns the position just after the last tile code.
+   private int parseTiles(byte[] text, int pos) {
+      int bands = (int) Math.max(1, Math.min(4L * Runtime.getRuntime().availableProcessors(), 
+                                             (text.length - pos) / LOAD_BAND_BYTES));
+      int[] bandStart = new int[bands + 1];
+      for (int k = 0; k <= bands; k++)
+         bandStart[k] = pos + (int) ((long) (text.length - pos) * k / bands);
+   
+      // Codes starting in each band, then the index of each band's first code
+      int[] firstCode = new int[bands + 1];
+      IntStream.range(0, bands).parallel().forEach(k -> {
+         int count = 0;
+         for (int i = bandStart[k]; i < bandStart[k + 1]; i++)
+            if ((text[i] > ' ') && ((i == 0) || (text[i - 1] <= ' ')))
+               count++;
+         firstCode[k + 1] = count;
+      });
+      for (int k = 0; k < bands; k++)
+         firstCode[k + 1] += firstCode[k];
+      final int numTiles = width * height;
+      if (firstCode[bands] < numTiles)
+         throw new NoSuchElementException("level file has " + firstCode[bands] + " tile codes, " + numTiles + " needed");
+   
+      // Rows are listed from the top down
+      int[] end = new int[bands];
+      IntStream.range(0, bands).parallel().forEach(k -> {
+         int code = firstCode[k];
+         for (int i = bandStart[k]; (i < bandStart[k + 1]) && (code < numTiles); i++) {
+            if ((text[i] <= ' ') || ((i > 0) && (text[i - 1] > ' ')))
+               continue;
+            int start = i;
+            while ((i < text.length) && (text[i] > ' '))
+               i++;
+            int type = (i - start == 1) ? TileTypes.forCode((char) text[start]) 
+                                        : TileTypes.forCode(new String(text, start, i - start, StandardCharsets.US_ASCII));
+            int x = code % width;
+            int y = height - code / width - 1;
+            tiles.setType(x, y, type);
+            if (++code == numTiles)
+               end[k] = i;
+         }
+      });
+      for (int k = 0; k < bands; k++)
+         if (end[k] > 0)
+            return end[k];
+      return pos;
+   }
+
+   /**
+    * How long loading the level took, from reading the file to opening the window
+    * @return the time in nanoseconds
+    */
+   public long getLoadNanos() {
+      return loadNanos;
+   }
+
+   // Set up the drawing canvas size  
+   private void openWindow() {
       int canvasX = Math.min(width, windowSizeX);
       int canvasY = Math.min(height, windowSizeY);           
    
@@ -101,30 +299,89 @@ public class World {
       } else {
          StdDraw.setYscale(0.0, windowSizeY * Tile.SIZE);
       }
-   
-      // Initial lighting
-      light(avatar.getX(), avatar.getY(), avatar.getTorchRadius());
-   
-      // Fire up the monster threads
-      for (Monster monster : monsters) {
-         Thread thread = new Thread(monster);
-         thread.start();
-      }
    }
    
    /**
-    * Accessor for the matrix of Tile objects
+    * Accessor for the map of tiles
     */
-   public Tile[][] getTileMatrx() {
+   public TileMap getTileMap() {
       return tiles;
    }
 
+   /**
+    * Accessor for the cluster graph used to find long paths, waiting for it to be
+    * built if need be, null if no map was loaded
+    */
+   public PathGraph getPathGraph() {
+      PathGraph graph = paths;
+      if ((graph == null) && (pathsBuilding != null))
+         paths = graph = pathsBuilding.join();
+      return graph;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /**
+    * Accessors for the size of the view window in tiles
+    */
+   public int getWindowSizeX() {
+      return windowSizeX;
+   }
+
+   public int getWindowSizeY() {
+      return windowSizeY;
+   }
+
 
    /**
     * Accessor for the Tile the Avatar is currently occupying        
     */
    public Tile getAvatarTile() {
-      return tiles[avatar.getX()][avatar.getY()];
+      return tiles.tileAt(avatar.getX(), avatar.getY());
+   }
+
+   /**
+    * Accessor for the seed of the world's randomness
+    */
+   public long getSeed() {
+      return seed;
+   }
+
+   /**
+    * Accessor for the clock game time is read from
+    */
+   public GameClock getClock() {
+      return clock;
+   }
+
+   /**
+    * Log every avatar action from now on
+    * @param recorder - where to log them, or null to stop logging
+    */
+   public void setRecorder(InputRecorder recorder) {
+      this.recorder = recorder;
+   }
+
+   /**
+    * Accessor for the last published snapshot of the world, safe to read from any thread
+    */
+   public WorldSnapshot getSnapshot() {
+      return snapshot;
+   }
+
+   /**
+    * Take a copy of the current tiles, avatar and monsters and publish it
+    * for readers. Doesn't change the world, so how often it is called makes
+    * no difference to how the game plays out.
+    */
+   public synchronized void publishSnapshot() {
+      snapshot = new WorldSnapshot(tiles, avatar, monsters, windowSizeX, windowSizeY);
    }
    
 
@@ -136,6 +393,168 @@ public class World {
       return (avatar.getHitPoints() > 0);
    }
 
+   /**
+    * Version of the world's drawable state, changes whenever something moves or is hurt
+    * @return the version number
+    */
+   public long getVersion() {
+      return version;
+   }
+
+   /**
+    * When does the most recent health display disappear
+    * @return the game time in nanoseconds
+    */
+   public long getOverlayExpiresNanos() {
+      return overlayExpiresNanos;
+   }
+
+   // Note a change that needs a redraw, damage also keeps the health display up for a while
+   private synchronized void changed(boolean damage) {
+      version++;
+      if (damage)
+         overlayExpiresNanos = time + (long) (DISPLAY_DAMAGE_SEC * 1e9);
+   }
+
+   /**
+    * Move every monster that is due, in order of when they are due. Monsters
+    * move at a fixed rate from their due times, not from when this is called,
+    * so the outcome doesn't depend on how often the game loop gets here.
+    *
+    * Moves happen in rounds. Each round takes every monster due by now, lets
+    * them all plan their moves in parallel, then resolves the moves one at a
+    * time in the order the monsters were due. Plans only depend on a monster's
+    * own state and where the avatar was at the start of the round, so the
+    * outcome is the same however the planning is split across threads.
+    * @param now - the current game time in nanoseconds
+    */
+   public void moveMonsters(long now) {
+      time = Math.max(time, now);
+      reap();
+      while (scheduler.peekDue() <= now) {
+         int n = 0;
+         while (scheduler.peekDue() <= now) {
+            if (n == batch.length) {
+               batch = Arrays.copyOf(batch, n * 2);
+               batchDue = Arrays.copyOf(batchDue, n * 2);
+               batchPlans = Arrays.copyOf(batchPlans, n * 2);
+            }
+            batchDue[n] = scheduler.peekDue();
+            batch[n++] = scheduler.poll();
+         }
+      
+         // Phase one: plan, spread over the worker pool if there are enough monsters
+         int avatarX, avatarY;
+         synchronized (this) {
+            avatarX = avatar.getX();
+            avatarY = avatar.getY();
+         }
+         PlanTask task = new PlanTask(batch, batchPlans, 0, n, avatarX, avatarY);
+         if (n > PLAN_CHUNK)
+            ForkJoinPool.commonPool().invoke(task);
+         else
+            task.compute();
+      
+         // Phase two: apply the moves, collisions, attacks and lava damage in order
+         for (int i = 0; i < n; i++) {
+            int sleepMs = batch[i].resolve(batchPlans[i]);
+            if ((sleepMs >= 0) && !sleepIfFar(batch[i]))
+               scheduler.schedule(batchDue[i] + Math.max(1, sleepMs) * 1000000L, batch[i]);
+            batch[i] = null;
+            batchPlans[i] = null;
+         }
+      }
+   }
+
+   // Make a monster dormant if it is too far from the avatar to matter, it isn't
+   // scheduled again until the avatar comes near
+   private synchronized boolean sleepIfFar(Monster monster) {
+      int slot = monsters.slotOf(monster.getHandle());
+      if (slot < 0)
+         return false;
+      int dx = Math.abs(monsters.getX(slot) - avatar.getX());
+      int dy = Math.abs(monsters.getY(slot) - avatar.getY());
+      if (Math.max(dx, dy) <= activationRadius)
+         return false;
+      monsters.setDormant(slot, true);
+      return true;
+   }
+
+   // Drop the monsters that died since the last tick
+   private synchronized void reap() {
+      monsters.reap();
+   }
+
+   // Wake the dormant monsters within the activation radius of a location,
+   // they make their next move at the current game time. They are scheduled
+   // in handle order, as the order of the spatial index changes with reaping.
+   private synchronized void wakeNear(int x, int y) {
+      int r = activationRadius;
+      IntStream.Builder woken = IntStream.builder();
+      monsters.forEachIn(x - r, y - r, x + r, y + r, slot -> {
+         if (monsters.isDormant(slot))
+            woken.add(monsters.handleAt(slot));
+      });
+      for (int handle : woken.build().sorted().toArray()) {
+         monsters.setDormant(monsters.slotOf(handle), false);
+         scheduler.schedule(time, new Monster(monsters, handle));
+      }
+   }
+
+   /**
+    * Set how far from the avatar, in tiles along either axis, monsters keep
+    * moving. Monsters further away go dormant until the avatar comes near.
+    * @param radius - the activation radius
+    */
+   public synchronized void setActivationRadius(int radius) {
+      activationRadius = radius;
+      wakeNear(avatar.getX(), avatar.getY());
+   }
+
+   public int getActivationRadius() {
+      return activationRadius;
+   }
+
+   /**
+    * Plans the moves of a range of monsters, splitting the range in half until it is small
+    */
+   private static class PlanTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Monster[] monsters;
+      private final Tile[] plans;
+      private final int from, to;
+      private final int avatarX, avatarY;
+   
+      PlanTask(Monster[] monsters, Tile[] plans, int from, int to, int avatarX, int avatarY) {
+         this.monsters = monsters;
+         this.plans    = plans;
+         this.from     = from;
+         this.to       = to;
+         this.avatarX  = avatarX;
+         this.avatarY  = avatarY;
+      }
+   
+      @Override
+      protected void compute() {
+         if (to - from <= PLAN_CHUNK) {
+            for (int i = from; i < to; i++)
+               plans[i] = monsters[i].plan(avatarX, avatarY);
+            return;
+         }
+         int mid = (from + to) >>> 1;
+         invokeAll(new PlanTask(monsters, plans, from, mid, avatarX, avatarY),
+                   new PlanTask(monsters, plans, mid, to, avatarX, avatarY));
+      }
+   }
+
+   /**
+    * When is the next monster due to move
+    * @return the game time in nanoseconds, or Long.MAX_VALUE if none are left
+    */
+   public long nextMonsterNanos() {
+      return scheduler.peekDue();
+   }
+
    /**
     * Monster attempting to move to (x, y)
     *      Damage is how much damage this monster will cause if they hit Avatar.
@@ -148,40 +567,43 @@ public class World {
       if ((x < 0) || (y < 0) || (x >= width) || ( y >= height))
          return;
    
-      // Dead monsters move off the board
-      if (monster.getHitPoints() <= 0) {
-         monster.setLocation(-1, -1);
+      // Reaped monsters don't move at all, dead ones move off the board
+      int slot = monsters.slotOf(monster.getHandle());
+      if (slot < 0)
+         return;
+      if (monsters.getHitPoints(slot) <= 0) {
+         monsters.setLocation(slot, -1, -1);
          return;
       }
    
       // See if we can't actually move there
-      if (!tiles[x][y].isPassable())
+      if (!tiles.isPassable(x, y))
          return;
                      
    
       // Check if avatar is in this location.  If so, attack but stay put.
       if ((avatar.getX() == x) && (avatar.getY() == y)) {
-         avatar.incurDamage(monster.getAttackDamage()); //attack avatar
+         avatar.incurDamage(monsters.getAttackDamage(slot)); //attack avatar
          //if standing in lava, get hurt
-         int damage = tiles[monster.getX()][monster.getY()].getDamage();
+         int damage = tiles.getDamage(monsters.getX(slot), monsters.getY(slot));
          if (damage > 0)
-            monster.incurDamage(damage);
+            monsters.incurDamage(slot, damage);
+         changed(true);
          return;
       }
    
       // If there's a monster already in our destination, don't move there.
-      for (Monster m : monsters) {
-         if ((m != monster) && (m.getX() == x) && (m.getY() == y))
-            return;
-      }                 
+      if (monsters.findAt(x, y, slot) >= 0)
+         return;
                   
       // If we haven't returned yet, must be a valid move.  Relocate.
-      monster.setLocation(x, y);
+      monsters.setLocation(slot, x, y);
       
       // if new location is lava, get hurt
-      int damage = tiles[x][y].getDamage();
+      int damage = tiles.getDamage(x, y);
       if (damage > 0)
-         monster.incurDamage(damage);
+         monsters.incurDamage(slot, damage);
+      changed(damage > 0);
    }
 
    /**
@@ -196,47 +618,94 @@ public class World {
          return;
    
       // See if we can't actually move there
-      if (!tiles[x][y].isPassable())
+      if (!tiles.isPassable(x, y))
          return;
    
       // Check to see if there is a monster there
-      for (Monster monster : monsters) {
-         if ((monster.getX() == x) && (monster.getY() == y)) {
-            monster.incurDamage(avatar.getDamage());
-            return;
-         }
+      int slot = monsters.findAt(x, y, -1);
+      if (slot >= 0) {
+         monsters.incurDamage(slot, avatar.getDamage());
+         changed(true);
+         return;
       }       
-      int damage = tiles[x][y].getDamage();
+      int damage = tiles.getDamage(x, y);
       if (damage > 0)
          avatar.incurDamage(damage);
       avatar.setLocation(x, y);
+      wakeNear(x, y);
+      changed(damage > 0);
    }
    
    
 
    /**
-    * Handle keyboard input
-    * @param ch - the character input from the keyboard
-     */
-   public void handleKeyPress() {
-      char key = 0;
-      char[] keyOptions = {'w','W','a','A','s','S','d','D','-','+','=','q','Q'};
+    * Accessor for the keyboard state this world reads, feed it to play a headless world
+    */
+   public KeyInput getInput() {
+      return input;
+   }
+
+   /**
+    * Accessor for the part of the world in view as of the last draw
+    */
+   public Camera getCamera() {
+      return camera;
+   }
+
+   // Is one of the keys we act on being held down
+   private char heldKey() {
+      for (char k : KEY_OPTIONS) 
+         if (input.isKeyPressed((int)k))
+            return k; //be content with first key found            
+      return 0;
+   }
+
+   /**
+    * When does keyboard input next need looking at
+    * @param now - the current game time in nanoseconds
+    * @return the time, or Long.MAX_VALUE if nothing is waiting (new input wakes the game loop)
+    */
+   public long nextInputNanos(long now) {
+      if ((heldKey() == 0) && !input.hasNextKeyTyped())
+         return Long.MAX_VALUE;
+      return Math.max(now, nextInputNanos);
+   }
+
+   /**
+    * Handle keyboard input, at most one action every INPUT_REPEAT_MS. Call
+    * moveMonsters(now) first, so the monsters due by now have already moved.
+    * @param now - the current game time in nanoseconds
+    */
+   public void handleKeyPress(long now) {
+      time = Math.max(time, now);
+      reap();
+      if (now < nextInputNanos)
+         return;
    
-      for (char k : keyOptions) 
-         if (StdDraw.isKeyPressed((int)k)) {
-            key = k;
-            break; //be content with first key found            
-         }
+      char key = heldKey();
    
       //If no key currently pressed, is there a pending move in the buffer?
-      if (key == 0 && StdDraw.hasNextKeyTyped()) { 
-         key = StdDraw.nextKeyTyped();            
+      if (key == 0 && input.hasNextKeyTyped()) { 
+         key = input.nextKeyTyped();            
       }
    
       //Empty the buffer (as only 1 move is allowed to be buffered) (prevents input lag)
-      while (StdDraw.hasNextKeyTyped()) 
-         StdDraw.nextKeyTyped();
-              
+      while (input.hasNextKeyTyped()) 
+         input.nextKeyTyped();
+   
+      if ((key != 0) && handleKey(key)) {
+         nextInputNanos = now + INPUT_REPEAT_MS * 1000000L;
+         if (recorder != null)
+            recorder.record(now, key);
+      }
+   }
+
+   /**
+    * Carry out the avatar action for a key
+    * @param key - the character input from the keyboard
+    * @return true if the key was one we act on, false otherwise
+    */
+   public boolean handleKey(char key) {
       int deltaX = 0;
       int deltaY = 0;
       switch (key) {   
@@ -263,9 +732,11 @@ public class World {
          case '=':
          case '+':
             avatar.increaseTorch();
+            relight();
             break;
          case '-':               
             avatar.decreaseTorch();
+            relight();
             break;
          case 'Q':
          case 'q':   
@@ -285,59 +756,208 @@ public class World {
             {
               deltaX += 4;
             }           
+            break;
+         default:
+            return false;
       }
    
       if ((deltaX != 0) || (deltaY != 0)) {
-         int x = avatar.getX() + deltaX;
-         int y = avatar.getY() + deltaY;
-         avatarMove(x, y);
-      }
+         int oldX = avatar.getX();
+         int oldY = avatar.getY();
+         avatarMove(oldX + deltaX, oldY + deltaY);
       
-      //after a move, adjust which tiles are lit by the torch
-      light(avatar.getX(), avatar.getY(), avatar.getTorchRadius());      
+         //after a move, adjust which tiles are lit by the torch
+         if ((avatar.getX() != oldX) || (avatar.getY() != oldY))
+            relight();
+      }
+      changed(false);     // facing may have changed even if we didn't move
+      return true;
    }   
 
+   // Relight around the avatar after it moved or its torch changed
+   private synchronized void relight() {
+      light(avatar.getX(), avatar.getY(), avatar.getTorchRadius());
+      changed(false);
+   }
+
    /**
-    * Draw all the lit tiles
+    * Draw all the lit tiles, as of the last published snapshot
     */
-   public synchronized void draw() {
+   public void draw() {
+      WorldSnapshot snap = snapshot;
+   
       //Determine offSet (difference between actual map and just the part in our view window)
-      offSetX = avatar.getX() - windowSizeX / 2;
-      offSetY = avatar.getY() - windowSizeY / 2;      
-      if (offSetX < 0) offSetX = 0;
-      if (offSetY < 0) offSetY = 0;
-      if (offSetX > width - windowSizeX) offSetX = width - windowSizeX;
-      if (offSetY > height - windowSizeY) offSetY = height - windowSizeY;
+      camera.follow(snap.getAvatarX(), snap.getAvatarY(), width, height, windowSizeX, windowSizeY);
+      int offSetX = camera.getOffSetX();
+      int offSetY = camera.getOffSetY();
+      long nowMs = clock.now() / 1000000L;
       
       for (int x = 0 + offSetX; x < offSetX + windowSizeX; x++) {
          for (int y = 0 + offSetY; y < offSetY + windowSizeY; y++) {
-            tiles[x][y].draw(x,y);
+            Tile.draw(camera, tiles.getType(x, y), x, y, snap.isLit(x, y));
          }
       }
    
-      for (int i = monsters.size() - 1; i >=0; i--) {
-         Monster monster = monsters.get(i);
-         int x = monster.getX();
-         int y = monster.getY();
-      
-         // Draw monsters, but not the dead ones
-         if (monster.getHitPoints() <= 0) {
-            monsters.remove(i);
-         } else {
-            if (tiles[x][y].getLit())
-               monster.draw();
-         }
-      }  
+      // Draw the monsters in view, but not the ones that died since the snapshot
+      snap.forEachMonsterIn(offSetX, offSetY, offSetX + windowSizeX - 1, offSetY + windowSizeY - 1, i -> {
+         if ((snap.getMonsterHitPoints(i) > 0) && snap.isLit(snap.getMonsterX(i), snap.getMonsterY(i)))
+            Monster.draw(snap, i, camera, nowMs);
+      });
            
-      avatar.draw();
+      avatar.draw(camera, snap.getAvatarX(), snap.getAvatarY(), snap.getAvatarHitPoints());
+   }
+
+   /**
+    * Copy the whole game state into a checkpoint, under the World lock. Only
+    * array copies happen here, encoding and writing happen after.
+    * @param state - the state to fill in
+    */
+   public synchronized void captureState(Checkpoint.State state) {
+      state.time   = time;
+      state.seed   = seed;
+      state.width  = width;
+      state.height = height;
+      state.tiles  = new byte[width * height];
+      state.lit    = new long[(width * height + 63) >>> 6];
+      for (int x = 0; x < width; x++)
+         for (int y = 0; y < height; y++)
+            state.tiles[x * height + y] = (byte) tiles.getType(x, y);
+      tiles.copyLit(state.lit);
+   
+      state.avatarX      = avatar.getX();
+      state.avatarY      = avatar.getY();
+      state.avatarHp     = avatar.getHitPoints();
+      state.avatarTorch  = avatar.getTorchRadius();
+      state.avatarFacing = (byte) avatar.getDirection().ordinal();
+   
+      // Monsters that are still scheduled, dead ones are left out
+      int n = scheduler.size();
+      state.resize(n + monsters.size());
+      int count = 0;
+      for (int i = 0; i < n; i++) {
+         int slot = monsters.slotOf(scheduler.monsterAt(i).getHandle());
+         if ((slot < 0) || (monsters.getHitPoints(slot) <= 0))
+            continue;
+         state.handle[count]       = scheduler.monsterAt(i).getHandle();
+         state.type[count]         = (byte) monsters.getType(slot);
+         state.moveType[count]     = (byte) monsters.getMoveType(slot);
+         state.x[count]            = monsters.getX(slot);
+         state.y[count]            = monsters.getY(slot);
+         state.hp[count]           = monsters.getHitPoints(slot);
+         state.attackDamage[count] = monsters.getAttackDamage(slot);
+         state.sleepMs[count]      = monsters.getSleepMs(slot);
+         state.aggroRadius[count]  = monsters.getAggroRadius(slot);
+         state.due[count]          = scheduler.dueAt(i);
+         state.damagedMs[count]    = monsters.getDamagedMs(slot);
+         count++;
+      }
+   
+      // Then the dormant ones, which aren't scheduled at all
+      for (int slot = 0; slot < monsters.size(); slot++) {
+         if (!monsters.isDormant(slot) || (monsters.getHitPoints(slot) <= 0))
+            continue;
+         state.handle[count]       = monsters.handleAt(slot);
+         state.type[count]         = (byte) monsters.getType(slot);
+         state.moveType[count]     = (byte) monsters.getMoveType(slot);
+         state.x[count]            = monsters.getX(slot);
+         state.y[count]            = monsters.getY(slot);
+         state.hp[count]           = monsters.getHitPoints(slot);
+         state.attackDamage[count] = monsters.getAttackDamage(slot);
+         state.sleepMs[count]      = monsters.getSleepMs(slot);
+         state.aggroRadius[count]  = monsters.getAggroRadius(slot);
+         state.due[count]          = Long.MAX_VALUE;
+         state.damagedMs[count]    = monsters.getDamagedMs(slot);
+         count++;
+      }
+      state.numMonsters = count;
+   }
+
+   /**
+    * Replace the whole game state with one read from a checkpoint
+    * @param state - the state to restore
+    */
+   public synchronized void restoreState(Checkpoint.State state) {
+      if ((state.width != width) || (state.height != height))
+         throw new IllegalArgumentException("checkpoint is " + state.width + "x" + state.height 
+                                            + ", world is " + width + "x" + height);
+      for (int x = 0; x < width; x++) {
+         for (int y = 0; y < height; y++) {
+            int i = x * height + y;
+            if (tiles.getType(x, y) != (state.tiles[i] & 0xFF))
+               tiles.setType(x, y, state.tiles[i] & 0xFF);
+            tiles.setLit(x, y, (state.lit[i >>> 6] & (1L << i)) != 0);
+         }
+      }
+   
+      avatar.setLocation(state.avatarX, state.avatarY);
+      avatar.setHitPoints(state.avatarHp);
+      avatar.setTorchRadius(state.avatarTorch);
+      avatar.setDirection(Avatar.Facing.values()[state.avatarFacing]);
+   
+      // The checkpoint's game time becomes the clock's now, so monsters carry on
+      // at their own pace and health displays run out as they would have
+      long shift = clock.now() - state.time;
+      long overlayExpires = 0;
+      Monster.MonsterType[] monsterTypes = Monster.MonsterType.values();
+      Monster.MoveType[] moveTypes = Monster.MoveType.values();
+      monsters.clear();
+      scheduler.clear();
+      for (int i = 0; i < state.numMonsters; i++) {
+         int handle = monsters.add(monsterTypes[state.type[i]], state.x[i], state.y[i], state.hp[i],
+                                   state.attackDamage[i], state.sleepMs[i], moveTypes[state.moveType[i]],
+                                   state.aggroRadius[i]);
+         if (state.due[i] == Long.MAX_VALUE)
+            monsters.setDormant(monsters.slotOf(handle), true);
+         else
+            scheduler.schedule(state.due[i] + shift, new Monster(monsters, handle));
+         if (state.damagedMs[i] != 0) {
+            long damagedMs = state.damagedMs[i] + shift / 1000000L;
+            monsters.setDamagedMs(monsters.slotOf(handle), Math.max(0, damagedMs));
+            overlayExpires = Math.max(overlayExpires, damagedMs * 1000000L + (long) (DISPLAY_DAMAGE_SEC * 1e9));
+         }
+      }
+   
+      time = state.time + shift;
+      nextInputNanos = 0;
+      overlayExpiresNanos = overlayExpires;
+      changed(false);
+      publishSnapshot();
    }
 
    /**
     * Return the number of alive monsters
-    * @return
+    * @return the number of monsters with hit points left
     */
    public int getNumMonsters() {
-      return monsters.size();
+      return monsters.getNumAlive();
+   }
+
+   /**
+    * How often monsters chasing the avatar kept to their last path
+    * @return {moves that kept to it, moves that worked out a new one}
+    */
+   public long[] getPathCacheStats() {
+      return new long[] {monsters.getPathHits(), monsters.getPathMisses()};
+   }
+
+   /**
+    * Checksum of the avatar and monster state, for checking two runs played out the same
+    * @return the checksum
+    */
+   public synchronized long checksum() {
+      long sum = avatar.getX();
+      sum = sum * 31 + avatar.getY();
+      sum = sum * 31 + avatar.getHitPoints();
+      for (int i = 0; i < monsters.size(); i++) {
+         if (monsters.getHitPoints(i) > 0) {
+            long m = monsters.getType(i);
+            m = m * 31 + monsters.getX(i);
+            m = m * 31 + monsters.getY(i);
+            m = m * 31 + monsters.getHitPoints(i);
+            sum += m * 0x9E3779B97F4A7C15L;   // order independent, reaping reorders slots
+         }
+      }
+      return sum;
    }
          
    /**
@@ -345,9 +965,7 @@ public class World {
     * @param value true (for lit), false otherwise
     */
    private void setAllTilesLit(boolean value) {
-      for (int x = 0 ; x < width; x++) 
-         for (int y = 0; y < height; y++)
-            tiles[x][y].setLit(value);               
+      tiles.setAllLit(value);
    }  
 
    /**
@@ -373,11 +991,11 @@ public class World {
     * @return the number of tiles lit
     */
    private int light(int x, int y, int currentX, int currentY, double r)  {
-       if(currentX < 0 || currentX > tiles.length -1 || currentY > tiles[0].length - 1 || currentY < 0)
+       if(!tiles.inBounds(currentX, currentY))
        {
          return 0;
        }
-       if(tiles[currentX][currentY].getLit() == true)
+       if(tiles.isLit(currentX, currentY))
        {
          return 0;
        }
@@ -387,7 +1005,12 @@ public class World {
          return 0;
        }
        
-       tiles[currentX][currentY].setLit(true);
+       tiles.setLit(currentX, currentY, true);
+       //light reaches an opaque tile but doesn't spread past it
+       if(tiles.isOpaque(currentX, currentY) && (currentX != x || currentY != y))
+       {
+         return 0;
+       }
        return light(x, y, currentX + 1, currentY, r) + light(x, y, currentX - 1, currentY, r) + light(x, y, currentX, currentY+1, r) + light(x, y, currentX, currentY-1, r);
        
    }    
@@ -0,0 +1,189 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Plays many headless worlds in one JVM on a shared pool of worker threads.
+ * A hosted world only takes a worker when one of its monsters is due to move
+ * or a key arrives in its input, the same way the Ultima loop sleeps, so a
+ * few threads can keep hundreds of sessions going.
+ */
+public class WorldHost {
+   private final ScheduledThreadPoolExecutor pool;                      // runs every session's game steps
+   private final Set<Session> sessions = ConcurrentHashMap.newKeySet(); // sessions still being played
+
+   /**
+    * One hosted world and when it next needs to run
+    */
+   public class Session implements Runnable {
+      private final World world;
+      private final Consumer<Session> listener;                         // told after every run, may be null
+      private final AtomicBoolean queued = new AtomicBoolean();         // a run has been handed to the pool
+      private volatile ScheduledFuture<?> next = null;                  // the next timed run
+      private volatile boolean finished = false;
+      private long steps = 0;
+   
+      private Session(World world, Consumer<Session> listener) {
+         this.world    = world;
+         this.listener = listener;
+         world.getInput().setListener(this::wake);
+      }
+   
+      /**
+       * Accessor for the world being played, feed keys into its input
+       */
+      public World getWorld() {
+         return world;
+      }
+   
+      /**
+       * Has the game ended, either the avatar or all the monsters are dead
+       */
+      public boolean isFinished() {
+         return finished;
+      }
+   
+      /**
+       * How many times the session has been run so far
+       */
+      public synchronized long getSteps() {
+         return steps;
+      }
+   
+      // Run as soon as a worker is free, at most one run is queued at a time
+      private void wake() {
+         if (!finished && queued.compareAndSet(false, true))
+            pool.execute(this);
+      }
+   
+      /**
+       * Move the monsters that are due and handle input, then arrange to run
+       * again when the next thing is due, and tell the listener. Called by the 
+       * pool, never at the same time for the same session.
+       */
+      @Override
+      public synchronized void run() {
+         queued.set(false);
+         if (finished)
+            return;
+         if (next != null) {
+            next.cancel(false);
+            next = null;
+         }
+      
+         long now = world.getClock().now();
+         world.moveMonsters(now);
+         world.handleKeyPress(now);
+         steps++;
+      
+         if (!world.avatarAlive() || (world.getNumMonsters() == 0)) {
+            close();
+         } else if (!finished) {
+            long wake = Math.min(world.nextMonsterNanos(), world.nextInputNanos(now));
+            if (wake != Long.MAX_VALUE)
+               next = pool.schedule(this, Math.max(0, wake - world.getClock().now()), TimeUnit.NANOSECONDS);
+         }
+         if (listener != null)
+            listener.accept(this);
+      }
+   
+      /**
+       * Stop playing this session. Doesn't wait for a run in progress, which
+       * won't schedule another once it sees the session is finished.
+       */
+      public void close() {
+         finished = true;
+         world.getInput().setListener(null);
+         ScheduledFuture<?> pending = next;
+         if (pending != null)
+            pending.cancel(false);
+         sessions.remove(this);
+      }
+   }
+
+   /**
+    * Create a host
+    * @param threads - number of worker threads shared by all the sessions
+    */
+   public WorldHost(int threads) {
+      pool = new ScheduledThreadPoolExecutor(threads);
+      pool.setRemoveOnCancelPolicy(true);
+   }
+
+   /**
+    * Start playing a new headless world
+    * @param level - the level file to load
+    * @param seed  - seed for the world's randomness
+    * @return the session playing the world
+    */
+   public Session host(String level, long seed) {
+      return host(level, seed, null);
+   }
+
+   /**
+    * Start playing a new headless world, telling a listener each time it has run
+    * @param level    - the level file to load
+    * @param seed     - seed for the world's randomness
+    * @param listener - called on a worker thread after every run, and once the game ends
+    * @return the session playing the world
+    */
+   public Session host(String level, long seed, Consumer<Session> listener) {
+      Session session = new Session(new World(level, seed, false), listener);
+      sessions.add(session);
+      session.wake();
+      return session;
+   }
+
+   /**
+    * How many sessions are still being played
+    */
+   public int getNumSessions() {
+      return sessions.size();
+   }
+
+   /**
+    * Stop every session and the worker threads
+    */
+   public void shutdown() {
+      for (Session session : sessions)
+         session.close();
+      pool.shutdownNow();
+   }
+
+   /**
+    * Test main method, hosts a number of worlds and types random keys into
+    * them for a while. Arguments: [worlds] [seconds] [threads]
+    */
+   public static void main(String[] args) throws InterruptedException {
+      final String level = "40x40.txt";
+      int numWorlds = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+      int seconds   = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+      int threads   = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+   
+      Stats stats = new Stats();
+      WorldHost host = new WorldHost(threads);
+      List<Session> all = new ArrayList<>();
+      for (int i = 0; i < numWorlds; i++)
+         all.add(host.host(level, i));
+      System.out.printf("hosted %d worlds on %d threads in %.3f s\n", numWorlds, threads, stats.elapsedTime());
+   
+      // This thread is the only one feeding keys, as each world's input expects
+      char[] keys = {'w', 'a', 's', 'd', '+', '-'};
+      Random random = new Random(7);
+      long end = System.nanoTime() + seconds * 1000000000L;
+      while (System.nanoTime() < end) {
+         for (Session session : all)
+            if (!session.isFinished() && (random.nextInt(4) == 0))
+               session.getWorld().getInput().typed(keys[random.nextInt(keys.length)]);
+         Thread.sleep(50);
+      }
+   
+      long steps = 0;
+      for (Session session : all)
+         steps += session.getSteps();
+      System.out.printf("%d of %d still playing, %d steps (%.0f per second)\n", 
+                        host.getNumSessions(), numWorlds, steps, steps / (double) seconds);
+      host.shutdown();
+   }
+}
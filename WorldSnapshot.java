@@ -0,0 +1,148 @@
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable copy of the parts of the World that change while the game runs.
+ * The World publishes a new one once per tick, so the renderer and the monster
+ * AI can read a consistent view without taking the World lock. The monsters
+ * around the avatar, as far as a window could show, are looked up in the
+ * MonsterStore's spatial index as the copy is made, so drawing the view
+ * doesn't have to look through all of them.
+ */
+public final class WorldSnapshot {
+   private final int width;                     // width of the world in tiles
+   private final int height;                    // height of the world in tiles
+   private final long[] lit;                    // bit (x * height + y) is set if that tile is lit
+   private final int avatarX;                   // avatar x-location
+   private final int avatarY;                   // avatar y-location
+   private final int avatarHp;                  // avatar hit points
+   private final Avatar.Facing avatarFacing;    // which way the avatar faces
+   private final int numMonsters;               // number of living monsters
+   private final int[] monsterHandle;           // monster handles in the MonsterStore
+   private final int[] monsterX;                // monster x-locations
+   private final int[] monsterY;                // monster y-locations
+   private final int[] monsterHp;               // monster hit points
+   private final byte[] monsterType;            // monster MonsterType ordinals
+   private final long[] monsterDamagedMs;       // when each monster last took damage, 0 if never
+   private final int[] nearMonsters;            // indices of the monsters within a window of the avatar
+
+   private static final Monster.MonsterType[] MONSTER_TYPES = Monster.MonsterType.values();
+
+   /**
+    * Copy the current state of the world. The caller must hold the World lock.
+    * @param tiles    - the map, for the lit state
+    * @param avatar   - the avatar
+    * @param monsters - the living monsters
+    * @param viewX    - width of the view window in tiles
+    * @param viewY    - height of the view window in tiles
+    */
+   WorldSnapshot(TileMap tiles, Avatar avatar, MonsterStore monsters, int viewX, int viewY) {
+      width  = tiles.getWidth();
+      height = tiles.getHeight();
+      lit = new long[(width * height + 63) >>> 6];
+      tiles.copyLit(lit);
+   
+      avatarX  = avatar.getX();
+      avatarY  = avatar.getY();
+      avatarHp = avatar.getHitPoints();
+      avatarFacing = avatar.getDirection();
+   
+      numMonsters    = monsters.size();
+      monsterHandle = new int[numMonsters];
+      monsterX  = new int[numMonsters];
+      monsterY  = new int[numMonsters];
+      monsterHp = new int[numMonsters];
+      monsterType      = new byte[numMonsters];
+      monsterDamagedMs = new long[numMonsters];
+      monsters.copyState(monsterHandle, monsterX, monsterY, monsterHp, monsterType, monsterDamagedMs);
+   
+      // Wherever the map edges push the camera, the view stays within a window of the avatar.
+      // The copy is in slot order, so a monster's slot is its index here.
+      IntStream.Builder near = IntStream.builder();
+      monsters.forEachIn(avatarX - viewX, avatarY - viewY, avatarX + viewX, avatarY + viewY, near::add);
+      nearMonsters = near.build().toArray();
+   }
+
+   /**
+    * Was the tile at (x, y) lit when the snapshot was taken
+    * @param x - the x position
+    * @param y - the y position
+    * @return true if lit, false otherwise
+    */
+   public boolean isLit(int x, int y) {
+      int bit = x * height + y;
+      return (lit[bit >>> 6] & (1L << bit)) != 0;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   public int getAvatarX() {
+      return avatarX;
+   }
+
+   public int getAvatarY() {
+      return avatarY;
+   }
+
+   public int getAvatarHitPoints() {
+      return avatarHp;
+   }
+
+   public Avatar.Facing getAvatarFacing() {
+      return avatarFacing;
+   }
+
+   /**
+    * Get the number of monsters in the snapshot, including dead ones that
+    * haven't been reaped yet, check getMonsterHitPoints to skip those
+    * @return the number of monsters in the snapshot
+    */
+   public int getNumMonsters() {
+      return numMonsters;
+   }
+
+   public Monster.MonsterType getMonsterType(int i) {
+      return MONSTER_TYPES[monsterType[i]];
+   }
+
+   public int getMonsterHandle(int i) {
+      return monsterHandle[i];
+   }
+
+   public long getMonsterDamagedMs(int i) {
+      return monsterDamagedMs[i];
+   }
+
+   public int getMonsterX(int i) {
+      return monsterX[i];
+   }
+
+   public int getMonsterY(int i) {
+      return monsterY[i];
+   }
+
+   public int getMonsterHitPoints(int i) {
+      return monsterHp[i];
+   }
+
+   /**
+    * Visit the monsters standing in a rectangle of tiles within a window of
+    * the avatar, such as the view. Monsters further away aren't visited.
+    * @param minX    - left edge of the rectangle, inclusive
+    * @param minY    - bottom edge of the rectangle, inclusive
+    * @param maxX    - right edge of the rectangle, inclusive
+    * @param maxY    - top edge of the rectangle, inclusive
+    * @param visitor - called with the index of each monster in the rectangle
+    */
+   public void forEachMonsterIn(int minX, int minY, int maxX, int maxY, IntConsumer visitor) {
+      for (int i : nearMonsters)
+         if ((monsterX[i] >= minX) && (monsterX[i] <= maxX) && (monsterY[i] >= minY) && (monsterY[i] <= maxY))
+            visitor.accept(i);
+   }
+}